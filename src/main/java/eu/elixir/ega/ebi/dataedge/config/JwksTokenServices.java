@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+/**
+ * Validates signed (RS256/384/512) JWT access tokens locally, instead of
+ * asking the check_token endpoint of the AAI. Signing keys come from a JWKS
+ * document - an http(s) URL, or a "file:" / "classpath:" location (e.g. for
+ * tests) - which is reloaded in the background, and on demand when a token
+ * names an unknown key. Claims are mapped by the same AccessTokenConverter
+ * as the remote token services.
+ *
+ * @author asenf
+ */
+public class JwksTokenServices implements ResourceServerTokenServices {
+
+        private static Log log = LogFactory.getLog(JwksTokenServices.class);
+        
+        private static final Map<String, String> ALGORITHMS = new HashMap<>();
+        static {
+            ALGORITHMS.put("RS256", "SHA256withRSA");
+            ALGORITHMS.put("RS384", "SHA384withRSA");
+            ALGORITHMS.put("RS512", "SHA512withRSA");
+        }
+        
+        // Claim read by MyUserAuthenticationConverter
+        private static final String USER_ID = "user_id";
+        
+        private final String jwksLocation;
+        private final AccessTokenConverter accessTokenConverter;
+        private final ObjectMapper mapper = new ObjectMapper();
+        
+        private long refreshInterval = 300;     // s, background reload
+        private long minRefreshInterval = 30;   // s, reloads for unknown keys
+        private long clockSkew = 60;            // s
+        private String issuer;
+        private String userClaim = "sub";
+        
+        private volatile Map<String, RSAPublicKey> keys = Collections.emptyMap();
+        private volatile long loaded = 0;
+        private ScheduledExecutorService scheduler;
+        
+        public JwksTokenServices(String jwksLocation, AccessTokenConverter accessTokenConverter) {
+            this.jwksLocation = jwksLocation;
+            this.accessTokenConverter = accessTokenConverter;
+        }
+        
+        public void setRefreshInterval(long refreshInterval) {
+            this.refreshInterval = refreshInterval;
+        }
+        
+        public void setMinRefreshInterval(long minRefreshInterval) {
+            this.minRefreshInterval = minRefreshInterval;
+        }
+        
+        public void setClockSkew(long clockSkew) {
+            this.clockSkew = clockSkew;
+        }
+        
+        /*
+         * Required 'iss' claim; not checked if empty
+         */
+        public void setIssuer(String issuer) {
+            this.issuer = issuer;
+        }
+        
+        /*
+         * Claim taken as the user ID if the token has no 'user_id' claim
+         */
+        public void setUserClaim(String userClaim) {
+            this.userClaim = userClaim;
+        }
+        
+        public void start() {
+            refresh();
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jwks-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        }
+        
+        public void stop() {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        }
+
+        @Override
+        public OAuth2Authentication loadAuthentication(String accessToken)
+                throws org.springframework.security.core.AuthenticationException,
+                       InvalidTokenException {
+            OAuth2Authentication authentication = accessTokenConverter.extractAuthentication(verify(accessToken));
+            if (authentication == null) {
+                throw new InvalidTokenException("No user in token");
+            }
+            return authentication;
+        }
+
+        @Override
+        public OAuth2AccessToken readAccessToken(String accessToken) {
+            return accessTokenConverter.extractAccessToken(accessToken, verify(accessToken));
+        }
+        
+        // Claims of a token with a valid signature, which is within its validity period
+        @SuppressWarnings("unchecked")
+        private Map<String, Object> verify(String accessToken) {
+            String[] parts = accessToken.split("\\.");
+            if (parts.length != 3) {
+                throw new InvalidTokenException("Not a signed JWT");
+            }
+            Map<String, Object> header;
+            try {
+                header = mapper.readValue(Base64.getUrlDecoder().decode(parts[0]), Map.class);
+            } catch (IOException | IllegalArgumentException ex) {
+                throw new InvalidTokenException("Invalid JWT header");
+            }
+            String algorithm = ALGORITHMS.get(String.valueOf(header.get("alg")));
+            if (algorithm == null) {
+                throw new InvalidTokenException("Unsupported algorithm " + header.get("alg"));
+            }
+            RSAPublicKey key = getKey((String) header.get("kid"));
+            
+            Map<String, Object> claims;
+            try {
+                Jwt jwt = JwtHelper.decodeAndVerify(accessToken, new RsaVerifier(key, algorithm));
+                claims = mapper.readValue(jwt.getClaims(), Map.class);
+            } catch (IOException | RuntimeException ex) {
+                throw new InvalidTokenException("Invalid JWT", ex);
+            }
+            
+            long now = System.currentTimeMillis() / 1000;
+            Object exp = claims.get(AccessTokenConverter.EXP);
+            if (!(exp instanceof Number) || now > ((Number) exp).longValue() + clockSkew) {
+                throw new InvalidTokenException("Token expired");
+            }
+            claims.put(AccessTokenConverter.EXP, ((Number) exp).longValue()); // The converter expects a Long
+            Object nbf = claims.get("nbf");
+            if (nbf instanceof Number && now + clockSkew < ((Number) nbf).longValue()) {
+                throw new InvalidTokenException("Token not yet valid");
+            }
+            if (issuer != null && !issuer.isEmpty() && !issuer.equals(claims.get("iss"))) {
+                throw new InvalidTokenException("Unexpected issuer " + claims.get("iss"));
+            }
+            if (!claims.containsKey(USER_ID) && userClaim != null && claims.containsKey(userClaim)) {
+                claims.put(USER_ID, claims.get(userClaim));
+            }
+            return claims;
+        }
+        
+        private RSAPublicKey getKey(String kid) {
+            RSAPublicKey key = findKey(keys, kid);
+            if (key == null && System.currentTimeMillis() - loaded > minRefreshInterval * 1000) {
+                refresh(); // Keys may have been rotated
+                key = findKey(keys, kid);
+            }
+            if (key == null) {
+                throw new InvalidTokenException("Unknown signing key " + kid);
+            }
+            return key;
+        }
+        
+        private static RSAPublicKey findKey(Map<String, RSAPublicKey> keys, String kid) {
+            if (kid == null && keys.size() == 1) {
+                return keys.values().iterator().next();
+            }
+            return keys.get(kid);
+        }
+        
+        // Reloads the JWKS document; the current keys are kept if that fails
+        private synchronized void refresh() {
+            try (InputStream in = open()) {
+                JsonNode root = mapper.readTree(in);
+                Map<String, RSAPublicKey> parsed = new HashMap<>();
+                KeyFactory kf = KeyFactory.getInstance("RSA");
+                for (JsonNode jwk:root.path("keys")) {
+                    if (!"RSA".equals(jwk.path("kty").asText()) || 
+                            (jwk.has("use") && !"sig".equals(jwk.path("use").asText()))) {
+                        continue;
+                    }
+                    BigInteger n = new BigInteger(1, Base64.getUrlDecoder().decode(jwk.path("n").asText()));
+                    BigInteger e = new BigInteger(1, Base64.getUrlDecoder().decode(jwk.path("e").asText()));
+                    parsed.put(jwk.has("kid") ? jwk.path("kid").asText() : null, 
+                               (RSAPublicKey) kf.generatePublic(new RSAPublicKeySpec(n, e)));
+                }
+                keys = parsed;
+                log.debug("Loaded " + parsed.size() + " signing keys from " + jwksLocation);
+            } catch (Exception ex) {
+                log.warn("Could not load signing keys from " + jwksLocation + ": " + ex);
+            } finally {
+                loaded = System.currentTimeMillis();
+            }
+        }
+        
+        private InputStream open() throws IOException {
+            if (jwksLocation.startsWith("http:") || jwksLocation.startsWith("https:")) {
+                URLConnection connection = new URL(jwksLocation).openConnection();
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(10000);
+                return connection.getInputStream();
+            }
+            return new DefaultResourceLoader().getResource(jwksLocation).getInputStream();
+        }
+}
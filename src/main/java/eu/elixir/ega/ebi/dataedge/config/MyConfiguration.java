@@ -16,8 +16,22 @@
 package eu.elixir.ega.ebi.dataedge.config;
 
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import eu.elixir.ega.ebi.dataedge.dto.MyExternalConfig;
+import eu.elixir.ega.ebi.dataedge.service.internal.ArchiveStreamFactory;
+import eu.elixir.ega.ebi.dataedge.service.internal.BamIndex;
+import eu.elixir.ega.ebi.dataedge.service.internal.BgzfStreamFactory;
+import eu.elixir.ega.ebi.dataedge.service.internal.BlockCache;
+import eu.elixir.ega.ebi.dataedge.service.internal.DirectBufferPool;
+import eu.elixir.ega.ebi.dataedge.service.internal.DiskBlockCache;
+import eu.elixir.ega.ebi.dataedge.service.internal.MappedReferenceSource;
+import eu.elixir.ega.ebi.dataedge.service.internal.MemoryBlockCache;
+import eu.elixir.ega.ebi.dataedge.service.internal.TieredBlockCache;
+import eu.elixir.ega.ebi.dataedge.service.internal.VariantIndex;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
@@ -44,6 +58,48 @@ import springfox.documentation.spring.web.plugins.Docket;
 public class MyConfiguration { 
     @Value("${ega.ega.external.url}") String externalUrl;
     @Value("${ega.ega.cram.fasta}") String cramFastaReference;
+    
+    // Streaming buffers: size of each buffer, number of pooled buffers, off-heap or not
+    // (off-heap only pays off if the container accepts ByteBuffers - plain streams copy them in 8 KB steps)
+    @Value("${ega.relay.buffer.size:1048576}") int relayBufferSize;
+    @Value("${ega.relay.buffer.count:64}") int relayBufferCount;
+    @Value("${ega.relay.buffer.direct:false}") boolean relayBufferDirect;
+    
+    // Threads reading from RES for non-blocking (Servlet 3.1) downloads
+    @Value("${ega.relay.async.threads:16}") int relayAsyncThreads;
+    
+    // Checksums of relayed data, off the copy thread
+    @Value("${ega.relay.digest.threads:0}") int digestThreads;
+    
+    // BGZF compression of generated BAM output (0 threads = number of CPUs)
+    @Value("${ega.bgzf.threads:0}") int bgzfThreads;
+    @Value("${ega.bgzf.level:5}") int bgzfLevel;
+    @Value("${ega.bgzf.depth:16}") int bgzfDepth;
+    
+    // Bases of CRAM reference sequences kept in memory (shared by all requests)
+    @Value("${ega.cram.reference.cache:1073741824}") long cramReferenceCacheSize;
+    // Parallel CRAM region decoding (0 threads = number of CPUs)
+    @Value("${ega.cram.threads:0}") int cramThreads;
+    
+    // Node-local cache of archive blocks (disk cache disabled unless a path is set)
+    @Value("${ega.cache.block.size:1048576}") int cacheBlockSize;
+    @Value("${ega.cache.disk.path:}") String diskCachePath;
+    @Value("${ega.cache.disk.size:10737418240}") long diskCacheSize;
+    // Shared off-heap block cache in front of the disk cache (disabled by default). It is allocated
+    // from -XX:MaxDirectMemorySize (default: about -Xmx), which must also leave room for direct relay
+    // buffers and NIO - e.g. -XX:MaxDirectMemorySize=3g for ega.cache.memory.size=2147483648
+    @Value("${ega.cache.memory.size:0}") long memoryCacheSize;
+    @Value("${ega.cache.memory.stripes:16}") int memoryCacheStripes;
+    // Bytes of (deflated) SAM headers kept in the "headerFile" cache
+    @Value("${ega.cache.header.size:268435456}") long headerCacheSize;
+    // Bytes of parsed index files kept in the "index" cache
+    @Value("${ega.cache.index.size:1073741824}") long indexCacheSize;
+    
+    // Parallel segmented fetch from RES
+    @Value("${ega.download.parallel.threads:32}") int segmentThreads;
+    
+    // Index loads of /files/prefetch (shared by all requests)
+    @Value("${ega.prefetch.index.threads:8}") int prefetchIndexThreads;
 
     // Ribbon Load Balanced Rest Template for communication with other Microservices
     
@@ -89,24 +145,102 @@ public class MyConfiguration {
         GuavaCache tokens = new GuavaCache("tokens", CacheBuilder.newBuilder()
                 .expireAfterAccess(1, TimeUnit.HOURS)
                 .build());
-        GuavaCache reqFile = new GuavaCache("reqFile", CacheBuilder.newBuilder()
-                .expireAfterAccess(24, TimeUnit.HOURS)
-                .build());
         GuavaCache index = new GuavaCache("index", CacheBuilder.newBuilder()
                 .expireAfterAccess(24, TimeUnit.HOURS)
+                .maximumWeight(indexCacheSize)
+                .weigher(new Weigher<Object, Object>() {    // Parsed BAI or raw index bytes
+                    @Override
+                    public int weigh(Object key, Object value) {
+                        if (value instanceof BamIndex) {
+                            return (int) Math.min(Integer.MAX_VALUE, ((BamIndex) value).getWeight());
+                        }
+                        if (value instanceof VariantIndex) {
+                            return (int) Math.min(Integer.MAX_VALUE, ((VariantIndex) value).getWeight());
+                        }
+                        return (value instanceof byte[]) ? ((byte[]) value).length : 1;
+                    }
+                })
                 .build());
         GuavaCache headerFile = new GuavaCache("headerFile", CacheBuilder.newBuilder()
                 .expireAfterAccess(24, TimeUnit.HOURS)
+                .maximumWeight(headerCacheSize)
+                .weigher(new Weigher<Object, Object>() {    // Deflated header bytes
+                    @Override
+                    public int weigh(Object key, Object value) {
+                        return (value instanceof byte[]) ? ((byte[]) value).length : 1;
+                    }
+                })
                 .build());
         GuavaCache fileSize = new GuavaCache("fileSize", CacheBuilder.newBuilder()
                 .expireAfterAccess(24, TimeUnit.HOURS)
                 .build());
         
-        simpleCacheManager.setCaches(Arrays.asList(tokens, reqFile, index, 
+        simpleCacheManager.setCaches(Arrays.asList(tokens, index, 
                     headerFile, fileSize));
         return simpleCacheManager;
     }
     
+    @Bean
+    public DirectBufferPool relayBufferPool() {
+        return new DirectBufferPool(relayBufferSize, relayBufferCount, relayBufferDirect);
+    }
+    
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService relayExecutor() {
+        return Executors.newFixedThreadPool(relayAsyncThreads);
+    }
+    
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService digestExecutor() {
+        return Executors.newFixedThreadPool(digestThreads > 0 ? digestThreads :
+                                            Runtime.getRuntime().availableProcessors());
+    }
+    
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService deflateExecutor() {
+        return Executors.newFixedThreadPool(bgzfThreads > 0 ? bgzfThreads :
+                                            Runtime.getRuntime().availableProcessors());
+    }
+    
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService cramExecutor() {
+        return Executors.newFixedThreadPool(cramThreads > 0 ? cramThreads :  // FIFO - pieces start in order
+                                            Runtime.getRuntime().availableProcessors());
+    }
+    
+    @Bean
+    public BgzfStreamFactory bgzfStreamFactory() {
+        return new BgzfStreamFactory(deflateExecutor(), bgzfLevel, bgzfDepth);
+    }
+    
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService prefetchExecutor() {
+        return Executors.newFixedThreadPool(prefetchIndexThreads);
+    }
+    
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService segmentExecutor() {
+        return Executors.newFixedThreadPool(segmentThreads); // FIFO - segments start in file order
+    }
+    
+    @Bean(destroyMethod = "close")
+    public ArchiveStreamFactory archiveStreamFactory() throws IOException {
+        BlockCache cache = null;
+        if (diskCachePath != null && diskCachePath.length() > 0 && diskCacheSize > 0) {
+            cache = new DiskBlockCache(diskCachePath, diskCacheSize, cacheBlockSize);
+        }
+        if (memoryCacheSize >= cacheBlockSize) {
+            BlockCache memory = new MemoryBlockCache(memoryCacheSize, cacheBlockSize, memoryCacheStripes);
+            cache = (cache == null) ? memory : new TieredBlockCache(memory, cache);
+        }
+        return new ArchiveStreamFactory(cacheBlockSize, cache);
+    }
+    
+    @Bean
+    public MappedReferenceSource cramReferenceSource() {
+        return new MappedReferenceSource(cramFastaReference, cramReferenceCacheSize);
+    }
+    
     @Bean
     public MyExternalConfig MyArchiveConfig() {
         return new MyExternalConfig(externalUrl, cramFastaReference);
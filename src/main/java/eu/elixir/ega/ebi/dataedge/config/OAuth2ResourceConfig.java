@@ -20,7 +20,10 @@ import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -31,6 +34,7 @@ import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
 import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
+import org.springframework.security.oauth2.config.annotation.web.configurers.ResourceServerSecurityConfigurer;
 import org.springframework.security.oauth2.provider.authentication.BearerTokenExtractor;
 import org.springframework.security.oauth2.provider.authentication.TokenExtractor;
 import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
@@ -50,6 +54,18 @@ public class OAuth2ResourceConfig extends ResourceServerConfigurerAdapter {
 
 	private TokenExtractor tokenExtractor = new BearerTokenExtractor();
 
+        // Local JWT validation, if enabled (auth.jwt.enabled)
+        @Autowired
+        private ObjectProvider<JwksTokenServices> jwksTokenServices;
+
+	@Override
+	public void configure(ResourceServerSecurityConfigurer resources) throws Exception {
+		JwksTokenServices tokenServices = jwksTokenServices.getIfAvailable();
+		if (tokenServices != null) {
+			resources.tokenServices(tokenServices);
+		}
+	}
+
 	@Override
 	public void configure(HttpSecurity http) throws Exception {
 		http.addFilterAfter(new OncePerRequestFilter() {
@@ -88,6 +104,23 @@ public class OAuth2ResourceConfig extends ResourceServerConfigurerAdapter {
 		//return new DefaultAccessTokenConverter();
 	}
 	
+        // Validates signed JWTs against the keys of a JWKS document instead of calling
+        // check_token; auth.jwt.jwks.uri may be a "file:" or "classpath:" location for tests
+        @Bean(initMethod = "start", destroyMethod = "stop")
+        @ConditionalOnProperty(name = "auth.jwt.enabled", havingValue = "true")
+        public JwksTokenServices jwksTokenServices(final @Value("${auth.jwt.jwks.uri}") String jwksUri,
+			final @Value("${auth.jwt.jwks.refresh:300}") long refreshInterval,
+			final @Value("${auth.jwt.issuer:}") String issuer,
+			final @Value("${auth.jwt.user.claim:sub}") String userClaim,
+			final @Value("${auth.jwt.clock.skew:60}") long clockSkew) {
+		final JwksTokenServices jwksTokenServices = new JwksTokenServices(jwksUri, accessTokenConverter());
+		jwksTokenServices.setRefreshInterval(refreshInterval);
+		jwksTokenServices.setIssuer(issuer);
+		jwksTokenServices.setUserClaim(userClaim);
+		jwksTokenServices.setClockSkew(clockSkew);
+		return jwksTokenServices;
+	}
+	
         @Primary
 	@Bean
 	public RemoteTokenServices remoteTokenServices(final @Value("${auth.server.url}") String checkTokenUrl,
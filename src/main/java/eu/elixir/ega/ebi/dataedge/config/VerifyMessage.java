@@ -16,7 +16,12 @@
 package eu.elixir.ega.ebi.dataedge.config;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -29,21 +34,31 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.util.FileCopyUtils;
 
 
+/**
+ * Signed permissions of an ELIXIR user (X-Permissions header): a list of
+ * dataset IDs followed by a timestamp, signed with SHA1withRSA.
+ *
+ * Two encodings are accepted: the original Base64 Java-serialized list of
+ * [data, signature], and the compact form "data.signature" (both parts
+ * URL-safe Base64), which avoids Java serialization entirely.
+ *
+ * @author asenf
+ */
 public class VerifyMessage {
+        // Permissions are valid for 10 minutes after they were signed
+        public static final long VALIDITY = 600000;
+        
 	private List<byte[]> list;
         private String keyFile = "publicKey";
         private ArrayList<String> messages = new ArrayList<>();
+        private long expires = 0;
         
-	@SuppressWarnings("unchecked")
 	//The constructor of VerifyMessage class retrieves the byte arrays from the File and prints the message only if the signature is verified.
 	public VerifyMessage(String message) throws Exception {
-            ByteArrayInputStream bais = new ByteArrayInputStream(Base64.getDecoder().decode(message));
-            ObjectInputStream in = new ObjectInputStream(bais);
-	    this.list = (List<byte[]>) in.readObject();
-	    in.close();
+            this.list = (message.indexOf('.') > 0) ? decodeCompact(message) : decodeSerialized(message);
 	    
             if (verifySignature(list.get(0), list.get(1), keyFile)) {
-                String permissions_timestamp = new String(list.get(0));
+                String permissions_timestamp = new String(list.get(0), StandardCharsets.UTF_8);
                 
                 StringTokenizer token = new StringTokenizer(permissions_timestamp, ",");
                 String dataset = null;
@@ -53,14 +68,36 @@ public class VerifyMessage {
                 }
                 
                 // Check timestamp; if too old, wipe permissions (10 minutes) - has t be tested.... (different machines, different timezones...)
-                long timestamp_delta = System.currentTimeMillis() - Long.parseLong(dataset);
-                if (timestamp_delta > 600000)
+                expires = Long.parseLong(dataset) + VALIDITY;
+                if (System.currentTimeMillis() > expires)
                     messages = new ArrayList<>();
             }
             
 	    //System.out.println(verifySignature(list.get(0), list.get(1), keyFile) ? "VERIFIED MESSAGE" + "\n----------------\n" + new String(list.get(0)) : "Could not verify the signature.");	    
 	}
 	
+        // "data.signature"
+        private static List<byte[]> decodeCompact(String message) {
+            int dot = message.indexOf('.');
+            List<byte[]> parts = new ArrayList<>(2);
+            parts.add(Base64.getUrlDecoder().decode(message.substring(0, dot)));
+            parts.add(Base64.getUrlDecoder().decode(message.substring(dot + 1)));
+            return parts;
+        }
+        
+        // Java-serialized ArrayList of two byte arrays; no other classes are resolved
+	@SuppressWarnings("unchecked")
+        private static List<byte[]> decodeSerialized(String message) throws Exception {
+            ByteArrayInputStream bais = new ByteArrayInputStream(Base64.getDecoder().decode(message));
+            try (ObjectInputStream in = new ListInputStream(bais)) {
+                List<byte[]> parts = (List<byte[]>) in.readObject();
+                if (parts.size() < 2) {
+                    throw new InvalidClassException("Expected data and signature");
+                }
+                return parts;
+            }
+        }
+        
 	//Method for signature verification that initializes with the Public Key, updates the data to be verified and then verifies them using the signature
 	private boolean verifySignature(byte[] data, byte[] signature, String keyFile) throws Exception {
             Signature sig = Signature.getInstance("SHA1withRSA");
@@ -70,19 +107,57 @@ public class VerifyMessage {
             return sig.verify(signature);
 	}
 	
-	//Method to retrieve the Public Key from a file
+	//Method to retrieve the Public Key from a file - read once, it is the same for all messages
 	private PublicKey getPublic(String filename) throws Exception {
-            ClassPathResource cpr = new ClassPathResource(filename);
-            byte[] keyBytes = FileCopyUtils.copyToByteArray(cpr.getInputStream());
-            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-            KeyFactory kf = KeyFactory.getInstance("RSA");
-            return kf.generatePublic(spec);
+            return KeyHolder.get(filename);
 	}
 	
         public ArrayList<String> getPermissions() {
             return this.messages;
         }
         
+        // Time (ms) after which the permissions are no longer valid; 0 if the signature did not verify
+        public long getExpires() {
+            return this.expires;
+        }
+        
+        private static class KeyHolder {
+            private static volatile PublicKey key;
+            
+            static PublicKey get(String filename) throws Exception {
+                PublicKey result = key;
+                if (result == null) {
+                    synchronized (KeyHolder.class) {
+                        if (key == null) {
+                            ClassPathResource cpr = new ClassPathResource(filename);
+                            byte[] keyBytes = FileCopyUtils.copyToByteArray(cpr.getInputStream());
+                            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
+                            KeyFactory kf = KeyFactory.getInstance("RSA");
+                            key = kf.generatePublic(spec);
+                        }
+                        result = key;
+                    }
+                }
+                return result;
+            }
+        }
+        
+        private static class ListInputStream extends ObjectInputStream {
+            
+            ListInputStream(InputStream in) throws IOException {
+                super(in);
+            }
+            
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                String name = desc.getName();
+                if (!name.equals(ArrayList.class.getName()) && !name.equals("[B")) {
+                    throw new InvalidClassException(name, "Not permitted in X-Permissions");
+                }
+                return super.resolveClass(desc);
+            }
+        }
+        
 	//public static void main(String[] args) throws Exception{
         //    VerifyMessage verifyMessage = new VerifyMessage("rO0ABXNyABNqYXZhLnV0aWwuQXJyYXlMaXN0eIHSHZnHYZ0DAAFJAARzaXpleHAAAAACdwQAAAACdXIAAltCrPMX+AYIVOACAAB4cAAAAB1FR0FEMDAwMDEwMDMxOTUsMTQ5MDY5NzQ1MDUwM3VxAH4AAgAAAQAHUeMYkSvH+VWTu6QeoaE/OvHZ43cRk7d5S7Lo389v5n+UOJejQ/2/3Zw6eg81ADY76g2JGa3J4C7LYb1kHZNuDN83Ah0xCis5V/zsPPgOuZ2jqy1VP2Gf7pxXtJ65Go5OH4RTVBJB12LWvz3KErsANrGkkLsyuLcovk0bXHtSXqbCCUWyCdb2jeM1M+JvhdaIyUsPK+n4xl4GmLO7AtKcuD1CDCOnnSPl99pSKgPeqbLskdPbjCeSkcIOLb6URzo52TjvlLv67ziQO6SBai5bxgW28wp3zjA6yRm0EHign2RJj1xhtz5+QoXZapRCB4F5a8GnMksAFypwVFzJLIO/eA==");
         //    List<String> list = verifyMessage.getPermissions();
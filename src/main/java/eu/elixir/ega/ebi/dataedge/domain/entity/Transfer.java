@@ -49,12 +49,13 @@ public class Transfer implements Serializable {
         @Column(name="timestamp")
         private Timestamp timestamp;
 
-        @Size(max=32)
-        @Column(name="md5_1", length=32)
+        // Checksums of data received / sent - algorithm in checksum_type
+        @Size(max=64)
+        @Column(name="md5_1", length=64)
         private String md5_1;
 
-        @Size(max=32)
-        @Column(name="md5_2", length=32)
+        @Size(max=64)
+        @Column(name="md5_2", length=64)
         private String md5_2;
 
         @Column(name="read")
@@ -66,5 +67,17 @@ public class Transfer implements Serializable {
         @Size(max=128)
         @Column(name="service", length=128)
         private String service;
+
+        // Resumable ticket downloads: ticket, and where in its data this transfer started
+        @Size(max=128)
+        @Column(name="download_ticket", length=128)
+        private String downloadTicket;
+
+        @Column(name="start_offset")
+        private long startOffset;
+
+        @Size(max=16)
+        @Column(name="checksum_type", length=16)
+        private String checksumType;
     
 }
@@ -16,6 +16,7 @@
 package eu.elixir.ega.ebi.dataedge.domain.repository;
 
 import eu.elixir.ega.ebi.dataedge.domain.entity.Transfer;
+import java.util.List;
 import org.springframework.data.repository.CrudRepository;
 
 /**
@@ -24,4 +25,6 @@ import org.springframework.data.repository.CrudRepository;
  */
 public interface TransferRepository  extends CrudRepository<Transfer, String> {
     
+    List<Transfer> findByDownloadTicketOrderByStartOffsetAsc(String downloadTicket);
+    
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * One file of a prefetch: its metadata, or why it is not accessible
+ *
+ * @author asenf
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Setter
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FileManifest {
+        private String fileId;
+        private String datasetId;
+        private String fileName;
+        private Long fileSize;
+        private String checksum;
+        private String checksumType;
+        private String indexFileId;
+        private String error;
+        
+        public FileManifest(String fileId, String error) {
+            this.fileId = fileId;
+            this.error = error;
+        }
+}
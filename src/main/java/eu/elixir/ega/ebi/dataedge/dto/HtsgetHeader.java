@@ -15,6 +15,8 @@
  */
 package eu.elixir.ega.ebi.dataedge.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -30,4 +32,12 @@ import lombok.Setter;
 @Getter
 public class HtsgetHeader {
     private String Authorization; 
+    
+    @JsonProperty("Range")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String range;
+    
+    public HtsgetHeader(String Authorization) {
+        this.Authorization = Authorization;
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ *
+ * @author asenf
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Setter
+@Getter
+public class RelayResult {
+    
+    private long bytes;
+    private long timeNanos;
+    
+    // Throughput of this transfer in MB/s
+    public double getSpeed() {
+        if (timeNanos <= 0) {
+            return 0;
+        }
+        return (bytes/1024.0/1024.0)/(timeNanos/1000000000.0);
+    }
+    
+    @Override
+    public String toString() {
+            return "RelayResult [bytes=" + bytes + 
+                   ", timeNanos=" + timeNanos +
+                   ", speed=" + getSpeed() + " MB/s]";
+    }    
+}
@@ -43,11 +43,15 @@ public class DownloadController {
     
     @RequestMapping(value = "/{download_ticket}", method = GET)
     public void downloadTicket(@PathVariable String download_ticket,
+                         @RequestParam(value = "resume", required = false, defaultValue = "false") boolean resume,
+                         @RequestParam(value = "checksum", required = false, defaultValue = "") String checksum,
                          HttpServletRequest request,
                          HttpServletResponse response) {
         
-        // Get Ticket from DOWNLOADER
+        // Get Ticket from DOWNLOADER; resume=true continues an interrupted download
         downloadService.downloadTicket(download_ticket,
+                                       resume,
+                                       checksum,
                                        request,
                                        response);
         
@@ -58,6 +62,7 @@ public class DownloadController {
                              @RequestParam("destinationKey") String destinationKey,
                              @RequestParam("startCoordinate") String startCoordinate,
                              @RequestParam("endCoordinate") String endCoordinate,
+                             @RequestParam(value = "checksum", required = false, defaultValue = "") String checksum,
                              HttpServletRequest request,
                              HttpServletResponse response) {
         
@@ -69,6 +74,7 @@ public class DownloadController {
                                      destinationKey,
                                      startCoordinate,
                                      endCoordinate,
+                                     checksum,
                                      request,
                                      response);
         
@@ -16,6 +16,10 @@
 package eu.elixir.ega.ebi.dataedge.rest;
 
 import eu.elixir.ega.ebi.dataedge.config.InvalidAuthenticationException;
+import eu.elixir.ega.ebi.dataedge.dto.FileManifest;
+import eu.elixir.ega.ebi.dataedge.dto.Region;
+import java.util.ArrayList;
+import java.util.List;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -29,6 +33,8 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.HEAD;
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
@@ -50,6 +56,7 @@ public class FileController {
                         @RequestParam(value = "destinationKey", required = false, defaultValue = "") String destinationKey,
                         @RequestParam(value = "startCoordinate", required = false, defaultValue = "0") long startCoordinate,
                         @RequestParam(value = "endCoordinate", required = false, defaultValue = "0") long endCoordinate, 
+                        @RequestParam(value = "checksum", required = false, defaultValue = "") String checksum,
                         HttpServletRequest request,
                         HttpServletResponse response) {
         Authentication auth = SecurityContextHolder.getContext().getAuthentication();
@@ -60,6 +67,7 @@ public class FileController {
                             destinationKey,
                             startCoordinate,
                             endCoordinate,
+                            checksum,
                             request,
                             response);
     }
@@ -79,14 +87,42 @@ public class FileController {
     }
     
     // {id} -- 'file', 'sample', 'run', ...
+    // Several regions: repeat chr/start/end (matched by position)
     @RequestMapping(value = "/byid/{type}", method = GET)
     @ResponseBody
     public void getById(@PathVariable String type,
                         @RequestParam(value = "accession", required = true) String accession,
                         @RequestParam(value = "format", required = false, defaultValue = "bam") String format,
-                        @RequestParam(value = "chr", required = false, defaultValue = "") String reference,
-                        @RequestParam(value = "start", required = false, defaultValue = "0") long start,
-                        @RequestParam(value = "end", required = false, defaultValue = "0") long end, 
+                        @RequestParam(value = "chr", required = false, defaultValue = "") List<String> reference,
+                        @RequestParam(value = "start", required = false, defaultValue = "0") List<Long> start,
+                        @RequestParam(value = "end", required = false, defaultValue = "0") List<Long> end, 
+                        @RequestParam(value = "fields", required = false) List<String> fields,
+                        @RequestParam(value = "tags", required = false) List<String> tags,
+                        @RequestParam(value = "notags", required = false) List<String> notags,
+                        @RequestParam(value = "header", required = false, defaultValue = "true") Boolean header, 
+                        @RequestParam(value = "destinationFormat", required = false, defaultValue="aes128") String destinationFormat,
+                        @RequestParam(value = "destinationKey", required = false, defaultValue = "") String destinationKey,
+                        HttpServletRequest request,
+                        HttpServletResponse response) {
+        List<Region> regions = new ArrayList<>();
+        for (int i=0; i<reference.size(); i++) {
+            regions.add(new Region(reference.get(i),
+                                   i<start.size()?start.get(i):0,
+                                   i<end.size()?end.get(i):0));
+        }
+        getById(type, accession, format, regions, fields, tags, notags, header, destinationFormat, destinationKey, request, response);
+    }
+
+    // Many regions (e.g. gene panels): JSON array of {chr, start, end} in the body
+    @RequestMapping(value = "/byid/{type}", method = POST)
+    @ResponseBody
+    public void getById(@PathVariable String type,
+                        @RequestParam(value = "accession", required = true) String accession,
+                        @RequestParam(value = "format", required = false, defaultValue = "bam") String format,
+                        @RequestBody List<Region> regions,
+                        @RequestParam(value = "fields", required = false) List<String> fields,
+                        @RequestParam(value = "tags", required = false) List<String> tags,
+                        @RequestParam(value = "notags", required = false) List<String> notags,
                         @RequestParam(value = "header", required = false, defaultValue = "true") Boolean header, 
                         @RequestParam(value = "destinationFormat", required = false, defaultValue="aes128") String destinationFormat,
                         @RequestParam(value = "destinationKey", required = false, defaultValue = "") String destinationKey,
@@ -100,9 +136,10 @@ public class FileController {
                             type, 
                             accession, 
                             format, 
-                            reference,
-                            start, 
-                            end, 
+                            regions,
+                            fields,
+                            tags,
+                            notags,
                             header,
                             destinationFormat,
                             destinationKey,
@@ -123,5 +160,23 @@ public class FileController {
         
         return fileService.getHeadById(auth, type, accession, request, response);
     }
+
+    /*
+     * Resolves the listed files and/or the files of a dataset up front, so
+     * later requests for them are served from the caches
+     */
+    @RequestMapping(value = "/prefetch", method = POST)
+    @ResponseBody
+    public List<FileManifest> prefetch(@RequestBody(required = false) List<String> fileIds,
+                                       @RequestParam(value = "dataset", required = false) String dataset,
+                                       @RequestParam(value = "index", required = false, defaultValue = "false") Boolean index,
+                                       HttpServletRequest request) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth==null) {
+            throw new InvalidAuthenticationException("prefetch");
+        }
+        
+        return fileService.prefetch(auth, fileIds, dataset, index, request);
+    }
     
 }
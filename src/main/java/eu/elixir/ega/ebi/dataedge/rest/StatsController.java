@@ -15,7 +15,12 @@
  */
 package eu.elixir.ega.ebi.dataedge.rest;
 
+import eu.elixir.ega.ebi.dataedge.dto.CacheStatistics;
+import com.google.common.cache.CacheStats;
+import eu.elixir.ega.ebi.dataedge.service.FileAuthorizationService;
+import eu.elixir.ega.ebi.dataedge.service.internal.MappedReferenceSource;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import javax.management.Attribute;
@@ -23,6 +28,7 @@ import javax.management.AttributeList;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.web.bind.annotation.RequestHeader;
 
@@ -40,6 +46,12 @@ import org.springframework.web.bind.annotation.ResponseBody;
 @RequestMapping("/stats")
 public class StatsController {
     
+    @Autowired
+    private FileAuthorizationService fileAuthorizationService;
+    
+    @Autowired
+    private MappedReferenceSource cramReferenceSource;
+    
     @RequestMapping(value = "/load", method = GET)
     @ResponseBody
     public String get() {
@@ -51,6 +63,24 @@ public class StatsController {
         return load;
     }
 
+    /*
+     * Hits and misses of the file metadata and permission caches, and of the
+     * CRAM reference sequences (size: bases held in memory)
+     */
+    @RequestMapping(value = "/cache", method = GET)
+    @ResponseBody
+    public List<CacheStatistics> cache() {
+        List<CacheStatistics> stats = new ArrayList<>(fileAuthorizationService.getStats());
+        CacheStats reference = cramReferenceSource.getStats();
+        stats.add(new CacheStatistics("cramReference", 
+                                      cramReferenceSource.getCachedBytes(), 
+                                      reference.hitCount(), 
+                                      reference.missCount(), 
+                                      reference.hitRate(), 
+                                      reference.evictionCount()));
+        return stats;
+    }
+
     /*
      * TEST ONLY: Test responses with calls using various tokens and routes
      */
@@ -86,18 +86,18 @@ public class TicketController {
                                   HttpServletResponse response) {
         Authentication auth = SecurityContextHolder.getContext().getAuthentication();
 
-        return ticketService.getTicket(auth, 
-                                       file_id,
-                                       format,
-                                       referenceIndex,
-                                       referenceName,
-                                       referenceMD5,
-                                       start,
-                                       end,
-                                       fields,
-                                       tags,
-                                       notags,
-                                       request,
-                                       response);
+        return ticketService.getDirectTicket(auth, 
+                                             file_id,
+                                             format,
+                                             referenceIndex,
+                                             referenceName,
+                                             referenceMD5,
+                                             start,
+                                             end,
+                                             fields,
+                                             tags,
+                                             notags,
+                                             request,
+                                             response);
     }    
 }
@@ -27,6 +27,8 @@ import org.springframework.security.core.Authentication;
 public interface DownloadService {
     
     public void downloadTicket(String ticket,
+                               boolean resume,
+                               String checksum,
                                HttpServletRequest request,
                                HttpServletResponse response);
        
@@ -35,6 +37,7 @@ public interface DownloadService {
                              String key,
                              String start,
                              String end,
+                             String checksum,
                              HttpServletRequest request,
                              HttpServletResponse response);
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service;
+
+import eu.elixir.ega.ebi.dataedge.dto.CacheStatistics;
+import eu.elixir.ega.ebi.dataedge.dto.File;
+import eu.elixir.ega.ebi.dataedge.dto.FileIndexFile;
+import eu.elixir.ega.ebi.dataedge.dto.FileManifest;
+import java.util.List;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Access checks for files: the datasets a user may access, and whether one
+ * of them contains a file.
+ *
+ * @author asenf
+ */
+public interface FileAuthorizationService {
+    
+    /*
+     * Datasets the user is authorised for: the granted authorities (EGA AAI),
+     * or the signed X-Permissions header of the request (ELIXIR)
+     */
+    public Set<String> getPermissions(Authentication auth, HttpServletRequest request);
+    
+    /*
+     * Metadata of the file, with the first authorised dataset that contains
+     * it set as its dataset; null if there is none. NotFoundException for
+     * unknown files
+     */
+    public File getFile(Authentication auth, String fileId, HttpServletRequest request);
+    
+    /*
+     * Index of the file; null if it has none
+     */
+    public FileIndexFile getFileIndexFile(String fileId);
+    
+    /*
+     * Resolves a batch of files (the given IDs, and/or the files of a
+     * dataset) into the caches, and returns one entry per distinct file ID
+     */
+    public List<FileManifest> prefetch(Authentication auth, 
+                                       List<String> fileIds, 
+                                       String datasetId, 
+                                       HttpServletRequest request);
+    
+    public List<CacheStatistics> getStats();
+    
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service;
+
+import eu.elixir.ega.ebi.dataedge.dto.File;
+import eu.elixir.ega.ebi.dataedge.dto.FileDataset;
+import eu.elixir.ega.ebi.dataedge.dto.FileIndexFile;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * File metadata from DOWNLOADER (and RES, for the size). Lookups are
+ * asynchronous so that callers can issue them together. Futures fail with
+ * NotFoundException for unknown files.
+ *
+ * @author asenf
+ */
+public interface FileResolutionService {
+    
+    /*
+     * Metadata of the file, with the size from RES if the database has none
+     */
+    public CompletableFuture<File> getFile(String fileId);
+    
+    /*
+     * The datasets that contain the file
+     */
+    public CompletableFuture<FileDataset[]> getDatasets(String fileId);
+    
+    /*
+     * The index of the file; null if it has none
+     */
+    public CompletableFuture<FileIndexFile> getIndexFile(String fileId);
+    
+    /*
+     * The files of a dataset
+     */
+    public CompletableFuture<File[]> getDatasetFiles(String datasetId);
+    
+}
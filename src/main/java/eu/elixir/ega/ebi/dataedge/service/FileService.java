@@ -15,6 +15,9 @@
  */
 package eu.elixir.ega.ebi.dataedge.service;
 
+import eu.elixir.ega.ebi.dataedge.dto.FileManifest;
+import eu.elixir.ega.ebi.dataedge.dto.Region;
+import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.springframework.http.ResponseEntity;
@@ -32,6 +35,7 @@ public interface FileService {
                         String destinationKey,
                         long startCoordinate,
                         long endCoordinate,
+                        String checksum,
                         HttpServletRequest request,
                         HttpServletResponse response);
     
@@ -44,15 +48,22 @@ public interface FileService {
                         String file_id,
                         String accession,
                         String format,
-                        String reference,
-                        long start,
-                        long end, 
+                        List<Region> regions,
+                        List<String> fields,
+                        List<String> tags,
+                        List<String> notags,
                         boolean header,
                         String destinationFormat,
                         String destinationKey,
                         HttpServletRequest request,
                         HttpServletResponse response);
     
+    public List<FileManifest> prefetch(Authentication auth, 
+                                       List<String> fileIds, 
+                                       String datasetId, 
+                                       boolean index, 
+                                       HttpServletRequest request);
+    
     public ResponseEntity getHeadById(Authentication auth, 
                             String file_id,
                             String accession,
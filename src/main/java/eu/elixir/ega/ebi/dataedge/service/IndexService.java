@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service;
+
+import eu.elixir.ega.ebi.dataedge.service.internal.BamIndex;
+import eu.elixir.ega.ebi.dataedge.service.internal.VariantIndex;
+import java.net.URL;
+
+/**
+ * Index files by index file ID, independent of the requesting user.
+ * Callers must have checked the permissions for the file first.
+ *
+ * @author asenf
+ */
+public interface IndexService {
+    
+    /*
+     * Parsed BAI file at resUrl
+     */
+    public BamIndex getBamIndex(String indexFileId, URL resUrl, long fileSize);
+    
+    /*
+     * Parsed tabix/CSI file at resUrl
+     */
+    public VariantIndex getVariantIndex(String indexFileId, URL resUrl, long fileSize);
+    
+    /*
+     * Raw bytes of the (CRAI) index file at resUrl
+     */
+    public byte[] getIndexBytes(String indexFileId, URL resUrl, long fileSize);
+    
+}
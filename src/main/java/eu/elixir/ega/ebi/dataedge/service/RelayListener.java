@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service;
+
+import eu.elixir.ega.ebi.dataedge.dto.RelayResult;
+
+/**
+ * Callback for relays. Exactly one of onComplete/onError is called, before
+ * the response is completed; onProgress is called as buffers are handed to
+ * the client.
+ *
+ * @author asenf
+ */
+public interface RelayListener {
+    
+    public void onComplete(RelayResult result);
+    
+    public void onError(Throwable t, RelayResult result);
+    
+    // Total number of bytes written to the client so far
+    public default void onProgress(long bytes) {
+    }
+    
+}
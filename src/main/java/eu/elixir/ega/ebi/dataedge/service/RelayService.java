@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service;
+
+import eu.elixir.ega.ebi.dataedge.dto.RelayResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import javax.servlet.AsyncContext;
+
+/**
+ *
+ * @author asenf
+ */
+public interface RelayService {
+    
+    /*
+     * Copy all bytes from 'in' to 'out'; digests are optional (may be null)
+     * and are updated with the bytes read and the bytes written respectively
+     */
+    public RelayResult relay(InputStream in,
+                             OutputStream out,
+                             MessageDigest inDigest,
+                             MessageDigest outDigest) throws IOException;
+    
+    /*
+     * Same as relay(), reporting progress (and the bytes sent before a
+     * failure) to the listener; may be null
+     */
+    public RelayResult relay(InputStream in,
+                             OutputStream out,
+                             MessageDigest inDigest,
+                             MessageDigest outDigest,
+                             RelayListener listener) throws IOException;
+    
+    /*
+     * Same as relay(), but driven by Servlet 3.1 write readiness: returns
+     * immediately, the listener is notified when the transfer has ended
+     */
+    public void relayAsync(InputStream in,
+                           AsyncContext context,
+                           MessageDigest inDigest,
+                           MessageDigest outDigest,
+                           RelayListener listener) throws IOException;
+    
+}
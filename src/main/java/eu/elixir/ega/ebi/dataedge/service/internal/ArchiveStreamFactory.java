@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import eu.elixir.ega.ebi.egacipher.EgaSeekableCachedResStream;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Opens archive files (via RES) as SeekableStreams for htsjdk. If a block
+ * cache is configured, reads go through it first.
+ *
+ * @author asenf
+ */
+public class ArchiveStreamFactory {
+
+    private final int blockSize;
+    private final BlockCache cache;
+
+    /*
+     * cache may be null - streams then go straight to RES
+     */
+    public ArchiveStreamFactory(int blockSize, BlockCache cache) {
+        this.blockSize = blockSize;
+        this.cache = cache;
+    }
+
+    /*
+     * 'extension' (e.g. ".bam") is reported by getSource() for format detection
+     */
+    public SeekableStream open(URL resUrl, String fileId, long fileSize, String extension) throws IOException {
+        SeekableStream source = (new EgaSeekableCachedResStream(resUrl, null, null, fileSize)).setExtension(extension);
+        if (cache == null || fileSize <= 0) {
+            return source;
+        }
+        return new CachedSeekableStream(source, cache, fileId, fileSize, blockSize);
+    }
+
+    public BlockCache getCache() {
+        return cache;
+    }
+
+    public void close() throws IOException {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+}
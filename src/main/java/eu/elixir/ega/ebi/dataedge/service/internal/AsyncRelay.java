@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import eu.elixir.ega.ebi.dataedge.dto.RelayResult;
+import eu.elixir.ega.ebi.dataedge.service.RelayListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * One non-blocking transfer. The client side is driven by WriteListener
+ * callbacks; the RES side is read one buffer at a time by short tasks on a
+ * shared executor, only while the (small) prefetch queue has room. No thread
+ * is held while waiting for a slow client.
+ *
+ * @author asenf
+ */
+class AsyncRelay implements WriteListener, AsyncListener, Runnable {
+
+    private static final Logger LOG = Logger.getLogger(AsyncRelay.class.getName());
+
+    private final InputStream in;
+    private final AsyncContext context;
+    private final DirectBufferPool pool;
+    private final Executor executor;
+    private final DigestStage digests;
+    private final RelayListener listener;
+
+    // Buffers read from RES, waiting to be written to the client
+    private final BlockingQueue<ByteBuffer> ready;
+    private final AtomicBoolean reading = new AtomicBoolean(false);
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private volatile boolean eof = false;
+
+    private volatile ServletOutputStream out;
+    private Method bufferWriter;
+    private byte[] staging;          // only for direct buffers without container support
+    private byte[] readStaging;      // only used by the (single) active read task
+    private ByteBuffer current;      // buffer currently being written (guarded by this)
+
+    private volatile long bytes = 0;
+    private final long started = System.nanoTime();
+
+    AsyncRelay(InputStream in,
+               AsyncContext context,
+               DirectBufferPool pool,
+               Executor executor,
+               int prefetch,
+               DigestStage digests,
+               RelayListener listener) {
+        this.in = in;
+        this.context = context;
+        this.pool = pool;
+        this.executor = executor;
+        this.digests = digests;
+        this.listener = listener;
+        this.ready = new ArrayBlockingQueue<>(Math.max(1, prefetch));
+    }
+
+    void start() throws IOException {
+        context.setTimeout(0); // Transfers may legitimately run for hours
+        context.addListener(this);
+        out = context.getResponse().getOutputStream();
+        bufferWriter = RelayServiceImpl.bufferWriter(out);
+        out.setWriteListener(this); // Container calls onWritePossible() once ready
+        scheduleRead();
+    }
+
+    /*
+     * RES side: read one buffer per iteration while there is room in the queue
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = null; // Owned by this task until it is queued
+        try {
+            while (!eof && !done.get() && ready.remainingCapacity() > 0) {
+                buffer = pool.acquire();
+                int read = fill(buffer);
+                if (read <= 0) {
+                    pool.release(buffer);
+                    buffer = null;
+                    eof = true;
+                    break;
+                }
+                if (done.get()) { // Failed while reading: fail() has already emptied the queue
+                    pool.release(buffer);
+                    buffer = null;
+                    break;
+                }
+                buffer.flip();
+                digests.update(buffer); // Hashed on the digest thread while it waits to be sent
+                ready.offer(buffer);
+                buffer = null;
+                if (done.get()) {
+                    discardReady(); // fail() may have run between the check and the offer
+                    break;
+                }
+                onWritePossible(); // Push data if the client side is idle
+            }
+        } catch (Throwable t) {
+            if (buffer != null) {
+                release(buffer);
+            }
+            fail(t);
+            return;
+        } finally {
+            reading.set(false);
+        }
+
+        if (eof) {
+            try {
+                onWritePossible(); // May complete the transfer
+            } catch (Throwable t) {
+                fail(t);
+            }
+        } else if (ready.remainingCapacity() > 0) {
+            scheduleRead(); // Space was freed while this task was finishing
+        }
+    }
+
+    private int fill(ByteBuffer buffer) throws IOException {
+        int total = 0;
+        if (buffer.hasArray()) {
+            while (buffer.hasRemaining()) {
+                int r = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (r < 0) break;
+                buffer.position(buffer.position() + r);
+                total += r;
+            }
+        } else {
+            if (readStaging == null) {
+                readStaging = new byte[Math.min(64 * 1024, buffer.capacity())];
+            }
+            while (buffer.hasRemaining()) {
+                int r = in.read(readStaging, 0, Math.min(readStaging.length, buffer.remaining()));
+                if (r < 0) break;
+                buffer.put(readStaging, 0, r);
+                total += r;
+            }
+        }
+        return total;
+    }
+
+    private void scheduleRead() {
+        if (!eof && !done.get() && reading.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    /*
+     * Client side: write as long as the container accepts data without blocking
+     */
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        if (done.get() || out == null) {
+            return;
+        }
+        while (out.isReady()) {
+            if (current == null) {
+                current = ready.poll();
+                if (current == null) {
+                    if (eof) {
+                        finish();
+                    } else {
+                        scheduleRead();
+                    }
+                    return;
+                }
+                scheduleRead(); // A slot in the queue just became free
+            }
+
+            write(current);
+            if (!current.hasRemaining()) {
+                release(current);
+                current = null;
+                listener.onProgress(bytes);
+            }
+        }
+    }
+
+    // Hands (part of) the buffer to the container; it buffers what it cannot send
+    private void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (bufferWriter != null) {
+            try {
+                bufferWriter.invoke(out, buffer);
+                buffer.position(buffer.limit());
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            } catch (IllegalAccessException ex) {
+                throw new IOException(ex);
+            }
+        } else if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+        } else {
+            if (staging == null) {
+                staging = new byte[Math.min(64 * 1024, buffer.capacity())];
+            }
+            length = Math.min(staging.length, length);
+            buffer.get(staging, 0, length);
+            out.write(staging, 0, length);
+        }
+        bytes += length;
+    }
+
+    // Back to the pool once the digests have seen it
+    private void release(ByteBuffer buffer) {
+        digests.done().whenComplete((v, t) -> pool.release(buffer));
+    }
+
+    private void finish() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException ex) {}
+        digests.done().whenComplete((v, t) -> {
+            RelayResult result = new RelayResult(bytes, System.nanoTime() - started);
+            if (t != null) {
+                notifyError(t, result);
+                return;
+            }
+            LOG.log(Level.INFO, "Relayed (async) {0}", result);
+            try {
+                listener.onComplete(result);
+            } finally {
+                context.complete();
+            }
+        });
+    }
+
+    private void fail(Throwable t) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException ex) {}
+        synchronized (this) {
+            if (current != null) {
+                release(current);
+                current = null;
+            }
+        }
+        discardReady();
+        notifyError(t, new RelayResult(bytes, System.nanoTime() - started));
+    }
+
+    // Buffers that will never be sent go back to the pool
+    private void discardReady() {
+        ByteBuffer buffer;
+        while ((buffer = ready.poll()) != null) {
+            release(buffer);
+        }
+    }
+
+    private void notifyError(Throwable t, RelayResult result) {
+        LOG.log(Level.WARNING, "Relay (async) failed after " + result, t);
+        try {
+            listener.onError(t, result);
+        } finally {
+            try {
+                context.complete();
+            } catch (IllegalStateException ex) {} // Already completed by the container
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        fail(t);
+    }
+
+    // AsyncListener ----------------------------------------------------------
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        fail(new IOException("Transfer timed out"));
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        fail(event.getThrowable() != null ? event.getThrowable() : new IOException("Transfer aborted"));
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+}
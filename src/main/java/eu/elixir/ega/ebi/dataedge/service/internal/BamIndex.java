@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.QueryInterval;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parsed BAI index, held in primitive arrays so it stays small and can be
+ * kept in memory. Spans for a region are resolved the same way htsjdk does
+ * (overlapping bins, pruned with the linear index), without any I/O.
+ *
+ * @author asenf
+ */
+public class BamIndex {
+
+    private static final byte[] BAI_MAGIC = {'B', 'A', 'I', 1};
+    private static final int METADATA_BIN = 37450;             // Pseudo-bin with mapped/unmapped counts
+    private static final int MAX_POSITION = 1 << 29;
+    private static final int LINEAR_SHIFT = 14;                 // 16kb linear index windows
+
+    private final Reference[] references;
+    private final long weight;
+
+    /*
+     * Bins of one reference, sorted by bin number; the chunks of bins[i] are
+     * chunks[2*binChunks[i] .. 2*binChunks[i+1]) as (start, end) pairs
+     */
+    private static class Reference {
+        int[] bins;
+        int[] binChunks;
+        long[] chunks;
+        long[] linear;
+    }
+
+    private BamIndex(Reference[] references) {
+        this.references = references;
+        long w = 64;
+        for (Reference r:references) {
+            w += 64 + 4L * (r.bins.length + r.binChunks.length) + 8L * (r.chunks.length + r.linear.length);
+        }
+        this.weight = w;
+    }
+
+    /*
+     * Parse a BAI file (the stream is read to the end, not closed)
+     */
+    public static BamIndex read(InputStream in) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(readAll(in)).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[4];
+        buf.get(magic);
+        if (!Arrays.equals(magic, BAI_MAGIC)) {
+            throw new IOException("Invalid BAI file");
+        }
+        Reference[] references = new Reference[buf.getInt()];
+        for (int i=0; i<references.length; i++) {
+            Reference r = new Reference();
+            int nBin = buf.getInt();
+            int[] bins = new int[nBin];
+            long[][] binChunkLists = new long[nBin][];
+            int kept = 0, chunkCount = 0;
+            for (int b=0; b<nBin; b++) {
+                int bin = buf.getInt();
+                long[] chunks = new long[2 * buf.getInt()];
+                for (int c=0; c<chunks.length; c++) {
+                    chunks[c] = buf.getLong();
+                }
+                if (bin == METADATA_BIN) {
+                    continue;
+                }
+                bins[kept] = bin;
+                binChunkLists[kept++] = chunks;
+                chunkCount += chunks.length;
+            }
+            // Sort bins (with their chunks) by bin number
+            Integer[] order = new Integer[kept];
+            for (int b=0; b<kept; b++) {
+                order[b] = b;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(bins[a], bins[b]));
+            r.bins = new int[kept];
+            r.binChunks = new int[kept + 1];
+            r.chunks = new long[chunkCount];
+            int pos = 0;
+            for (int b=0; b<kept; b++) {
+                long[] chunks = binChunkLists[order[b]];
+                r.bins[b] = bins[order[b]];
+                r.binChunks[b] = pos / 2;
+                System.arraycopy(chunks, 0, r.chunks, pos, chunks.length);
+                pos += chunks.length;
+            }
+            r.binChunks[kept] = pos / 2;
+            r.linear = new long[buf.getInt()];
+            for (int l=0; l<r.linear.length; l++) {
+                r.linear[l] = buf.getLong();
+            }
+            references[i] = r;
+        }
+        return new BamIndex(references);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        int length = 0, r;
+        while ((r = in.read(data, length, data.length - length)) > 0) {
+            length += r;
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+        }
+        return Arrays.copyOf(data, length);
+    }
+
+    public int getNumberOfReferences() {
+        return references.length;
+    }
+
+    // Approximate heap size in bytes, for the weight-bounded cache
+    public long getWeight() {
+        return weight;
+    }
+
+    /*
+     * Chunks that may hold alignments overlapping [start, end] (1-based,
+     * inclusive; end <= 0 means to the end of the reference)
+     */
+    public BAMFileSpan getSpanOverlapping(int referenceIndex, int start, int end) {
+        if (referenceIndex < 0 || referenceIndex >= references.length) {
+            return new BAMFileSpan();
+        }
+        Reference r = references[referenceIndex];
+        int beg = (start <= 0) ? 0 : start - 1;
+        int last = (end <= 0 || end > MAX_POSITION) ? MAX_POSITION - 1 : end - 1;
+
+        List<Chunk> chunks = new ArrayList<>();
+        for (int bin:regionToBins(beg, last)) {
+            int b = Arrays.binarySearch(r.bins, bin);
+            if (b >= 0) {
+                for (int c=r.binChunks[b]; c<r.binChunks[b+1]; c++) {
+                    chunks.add(new Chunk(r.chunks[2*c], r.chunks[2*c+1]));
+                }
+            }
+        }
+        int window = beg >> LINEAR_SHIFT;
+        long minimumOffset = (window < r.linear.length) ? r.linear[window] : 0;
+        return new BAMFileSpan(Chunk.optimizeChunkList(chunks, minimumOffset));
+    }
+
+    /*
+     * Merged span for several intervals
+     */
+    public BAMFileSpan getSpanOverlapping(QueryInterval[] intervals) {
+        BAMFileSpan[] spans = new BAMFileSpan[intervals.length];
+        for (int i=0; i<intervals.length; i++) {
+            spans[i] = getSpanOverlapping(intervals[i].referenceIndex, intervals[i].start, intervals[i].end);
+        }
+        return BAMFileSpan.merge(spans);
+    }
+
+    // Standard UCSC binning scheme, 0-based inclusive coordinates
+    private static int[] regionToBins(int beg, int end) {
+        int[] bins = new int[METADATA_BIN];
+        int n = 0;
+        bins[n++] = 0;
+        for (int k=1 + (beg>>26); k<=1 + (end>>26); k++) bins[n++] = k;
+        for (int k=9 + (beg>>23); k<=9 + (end>>23); k++) bins[n++] = k;
+        for (int k=73 + (beg>>20); k<=73 + (end>>20); k++) bins[n++] = k;
+        for (int k=585 + (beg>>17); k<=585 + (end>>17); k++) bins[n++] = k;
+        for (int k=4681 + (beg>>14); k<=4681 + (end>>14); k++) bins[n++] = k;
+        return Arrays.copyOf(bins, n);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.BlockGunzipper;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a BAM slice by copying the source's compressed BGZF blocks instead
+ * of re-encoding records. Records are passed in file order (they must carry
+ * their file position, as records read from a BAMFileReader do); each run of
+ * consecutive records is copied as raw bytes of the source stream. Blocks
+ * that lie completely inside a run are copied compressed, byte for byte. Only
+ * the partial blocks at the ends of a run are inflated and re-deflated.
+ * A record without a file position is encoded instead, so the response
+ * does not break off once it is streaming.
+ *
+ * The output is a valid BAM: a freshly written header, the slices, and the
+ * BGZF EOF block (written by close()).
+ *
+ * @author asenf
+ */
+class BgzfSlicer implements Closeable {
+
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final SeekableStream in;                    // Compressed source (a separate stream from the reader's)
+    private final OutputStream out;                     // Raw output
+    private final BlockCompressedOutputStream bgzf;     // Re-deflated output, over 'out'
+    private final BlockGunzipper gunzipper = new BlockGunzipper();
+    private final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    private final byte[] uncompressed = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+
+    private long runStart = -1;                         // Virtual offsets of the current run
+    private long runEnd = -1;
+    private long copiedBytes = 0;
+    private long deflatedBytes = 0;
+    private long encodedRecords = 0;
+    private BAMRecordCodec codec;                       // For records without a file position
+
+    BgzfSlicer(SeekableStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+        this.bgzf = new BlockCompressedOutputStream(out, null);
+    }
+
+    void writeHeader(SAMFileHeader header) throws IOException {
+        BgzfStreamFactory.writeBamHeader(bgzf, header);
+        codec = new BAMRecordCodec(header);
+        codec.setOutputStream(bgzf);
+    }
+
+    /*
+     * Next record of the slice
+     */
+    void add(SAMRecord record) throws IOException {
+        if (record.getFileSource() == null || !(record.getFileSource().getFilePointer() instanceof BAMFileSpan)) {
+            if (codec == null) {
+                throw new IllegalStateException("Header not written");
+            }
+            flushRun();                 // Keeps the record order
+            codec.encode(record);
+            encodedRecords++;
+            return;
+        }
+        BAMFileSpan span = (BAMFileSpan) record.getFileSource().getFilePointer();
+        long start = span.getFirstOffset();
+        long end = span.getChunks().get(span.getChunks().size() - 1).getChunkEnd();
+        if (runStart >= 0 && start == runEnd) {
+            runEnd = end;
+        } else {
+            flushRun();
+            runStart = start;
+            runEnd = end;
+        }
+    }
+
+    private void flushRun() throws IOException {
+        if (runStart < 0) {
+            return;
+        }
+        long startBlock = runStart >>> 16, endBlock = runEnd >>> 16;
+        int startOffset = (int) (runStart & 0xFFFF), endOffset = (int) (runEnd & 0xFFFF);
+        runStart = runEnd = -1;
+        
+        if (startBlock == endBlock) {
+            int length = readBlock(startBlock);
+            writeUncompressed(startOffset, Math.min(endOffset, length));
+            return;
+        }
+        long firstWhole = startBlock;
+        if (startOffset > 0) {          // Head: the tail end of a partial block
+            int bsize = readBlockHeader(startBlock);
+            int length = inflate(bsize);
+            writeUncompressed(startOffset, length);
+            firstWhole = startBlock + bsize;
+        }
+        if (firstWhole < endBlock) {    // Interior: whole blocks, compressed bytes as they are
+            bgzf.flush();               // Ends the current output block
+            copyCompressed(firstWhole, endBlock);
+        }
+        if (endOffset > 0) {            // Tail: the start of a partial block
+            int length = readBlock(endBlock);
+            writeUncompressed(0, Math.min(endOffset, length));
+        }
+    }
+
+    private void writeUncompressed(int from, int to) throws IOException {
+        if (to > from) {
+            bgzf.write(uncompressed, from, to - from);
+            deflatedBytes += to - from;
+        }
+    }
+
+    private void copyCompressed(long from, long to) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER];
+        in.seek(from);
+        long remaining = to - from;
+        while (remaining > 0) {
+            int r = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (r <= 0) {
+                throw new EOFException("BAM ended at " + (to - remaining) + ", expected " + to);
+            }
+            out.write(buffer, 0, r);
+            remaining -= r;
+        }
+        copiedBytes += to - from;
+    }
+
+    // Inflates the block at the address into 'uncompressed'; returns its length
+    private int readBlock(long address) throws IOException {
+        return inflate(readBlockHeader(address));
+    }
+
+    // Reads the block at the address into 'compressed'; returns its size
+    private int readBlockHeader(long address) throws IOException {
+        in.seek(address);
+        readFully(compressed, 0, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+        int offset = BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET;
+        int bsize = ((compressed[offset] & 0xFF) | ((compressed[offset+1] & 0xFF) << 8)) + 1;
+        readFully(compressed, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, 
+                  bsize - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+        return bsize;
+    }
+
+    private int inflate(int bsize) {
+        return gunzipper.unzipBlock(uncompressed, compressed, bsize);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = in.read(b, off, len);
+            if (r <= 0) {
+                throw new EOFException("Truncated BGZF block");
+            }
+            off += r;
+            len -= r;
+        }
+    }
+
+    long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    long getDeflatedBytes() {
+        return deflatedBytes;
+    }
+
+    long getEncodedRecords() {
+        return encodedRecords;
+    }
+
+    /*
+     * Writes the last run and the EOF block; closes the output
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushRun();
+        } finally {
+            bgzf.close();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+
+/**
+ * Opens BGZF output streams that compress on a pool shared by all requests.
+ *
+ * @author asenf
+ */
+public class BgzfStreamFactory {
+
+    private final ExecutorService executor;
+    private final int depth;
+    private final ThreadLocal<Deflater> deflaters;  // One per pool thread, at the configured level
+
+    public BgzfStreamFactory(ExecutorService executor, final int level, int depth) {
+        this.executor = executor;
+        this.depth = depth;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public ParallelBgzfOutputStream open(OutputStream out) {
+        return new ParallelBgzfOutputStream(out, executor, deflaters, depth);
+    }
+
+    /*
+     * BAM magic, header text and reference dictionary
+     */
+    public static void writeBamHeader(OutputStream out, SAMFileHeader header) throws IOException {
+        StringWriter text = new StringWriter();
+        new SAMTextHeaderCodec().encode(text, header);
+        BinaryCodec codec = new BinaryCodec(out);
+        codec.writeBytes(new byte[]{'B', 'A', 'M', 1});
+        codec.writeString(text.toString(), true, false);
+        codec.writeInt(header.getSequenceDictionary().size());
+        for (SAMSequenceRecord sequence:header.getSequenceDictionary().getSequences()) {
+            codec.writeString(sequence.getSequenceName(), true, true);
+            codec.writeInt(sequence.getSequenceLength());
+        }
+    }
+}
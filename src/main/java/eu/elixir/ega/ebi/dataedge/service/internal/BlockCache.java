@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import java.io.Closeable;
+
+/**
+ * Cache of plaintext archive blocks, keyed by (fileId, blockOffset).
+ *
+ * @author asenf
+ */
+public interface BlockCache extends Closeable {
+    
+    /*
+     * Copy the cached block into 'buffer'; returns its length, or -1 if the
+     * block is not cached
+     */
+    public int get(String fileId, long blockOffset, byte[] buffer);
+    
+    /*
+     * Offer a block to the cache - it may decline (e.g. block too large)
+     */
+    public void put(String fileId, long blockOffset, byte[] data, int length);
+    
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * SeekableStream over an archive file that reads whole blocks through a
+ * BlockCache; only blocks not in the cache are read from the underlying
+ * (RES) stream. The current block is kept, so small sequential reads do not
+ * go to the cache each time.
+ *
+ * getSource() is passed through, so format detection by extension still
+ * works.
+ *
+ * @author asenf
+ */
+class CachedSeekableStream extends SeekableStream {
+
+    private final SeekableStream source;
+    private final BlockCache cache;
+    private final String fileId;
+    private final long length;
+    private final int blockSize;
+
+    private final byte[] block;
+    private long blockStart = -1;
+    private int blockLength = 0;
+    private long position = 0;
+
+    CachedSeekableStream(SeekableStream source, BlockCache cache, String fileId, long length, int blockSize) {
+        this.source = source;
+        this.cache = cache;
+        this.fileId = fileId;
+        this.length = length;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return position;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        this.position = position;
+    }
+
+    @Override
+    public boolean eof() throws IOException {
+        return position >= length;
+    }
+
+    @Override
+    public String getSource() {
+        return source.getSource();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        load(position);
+        return block[(int) (position++ - blockStart)] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        load(position);
+        int inBlock = (int) (position - blockStart);
+        int n = Math.min(len, blockLength - inBlock);
+        System.arraycopy(block, inBlock, buffer, offset, n);
+        position += n;
+        return n;
+    }
+
+    // Make the block containing 'pos' the current block
+    private void load(long pos) throws IOException {
+        long start = (pos / blockSize) * blockSize;
+        if (start == blockStart) {
+            return;
+        }
+        int expected = (int) Math.min(blockSize, length - start);
+        blockStart = -1;
+        if (cache.get(fileId, start, block) != expected) {
+            source.seek(start);
+            int total = 0;
+            while (total < expected) {
+                int r = source.read(block, total, expected - total);
+                if (r < 0) {
+                    throw new EOFException("Archive file " + fileId + " ended at " + (start + total));
+                }
+                total += r;
+            }
+            cache.put(fileId, start, block, total);
+        }
+        blockStart = start;
+        blockLength = expected;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
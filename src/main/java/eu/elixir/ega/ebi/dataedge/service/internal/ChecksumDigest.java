@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import eu.elixir.ega.ebi.dataedge.config.UnsupportedFormatException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Transfer checksums. Cryptographic hashes come from the JDK; CRC32 (JDK,
+ * hardware accelerated) and CRC32C (Guava) are wrapped as MessageDigests so
+ * the relay code can treat all of them alike. CRC values are 4 bytes, big
+ * endian.
+ *
+ * @author asenf
+ */
+public class ChecksumDigest extends MessageDigest {
+
+    public static final List<String> ALGORITHMS = Arrays.asList("MD5", "SHA-1", "SHA-256", "CRC32", "CRC32C");
+
+    private final CRC32 crc32;      // CRC32
+    private Hasher crc32c;          // CRC32C
+
+    private ChecksumDigest(String algorithm) {
+        super(algorithm);
+        this.crc32 = algorithm.equals("CRC32") ? new CRC32() : null;
+        engineReset();
+    }
+
+    /*
+     * Digest for one of ALGORITHMS (case insensitive)
+     */
+    public static MessageDigest getInstance(String algorithm) {
+        String name = (algorithm == null) ? "" : algorithm.trim().toUpperCase();
+        if (!ALGORITHMS.contains(name)) {
+            throw new UnsupportedFormatException("checksum " + algorithm);
+        }
+        if (name.startsWith("CRC")) {
+            return new ChecksumDigest(name);
+        }
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new UnsupportedFormatException("checksum " + algorithm);
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        if (crc32 != null) {
+            crc32.update(input);
+        } else {
+            crc32c.putByte(input);
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        if (crc32 != null) {
+            crc32.update(input, offset, len);
+        } else {
+            crc32c.putBytes(input, offset, len);
+        }
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        if (crc32 != null) {
+            crc32.update(input); // Reads direct buffers without copying
+        } else {
+            super.engineUpdate(input);
+        }
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 4;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        int value = (crc32 != null) ? (int) crc32.getValue() : crc32c.hash().asInt();
+        engineReset();
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    @Override
+    protected void engineReset() {
+        if (crc32 != null) {
+            crc32.reset();
+        } else {
+            crc32c = Hashing.crc32c().newHasher();
+        }
+    }
+}
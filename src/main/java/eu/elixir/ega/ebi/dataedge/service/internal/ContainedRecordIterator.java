@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Records of a coordinate sorted file span that lie completely within one of
+ * the intervals - what SamReader.query(intervals, true) returns, for spans
+ * that were resolved without the reader's own index. The intervals must be
+ * sorted and disjoint (QueryInterval.optimizeIntervals). Iteration stops at
+ * the first record past the last interval.
+ *
+ * @author asenf
+ */
+class ContainedRecordIterator implements Iterator<SAMRecord> {
+
+    private final SAMRecordIterator source;
+    private final QueryInterval[] intervals;
+    private int current = 0;                // First interval that may still contain records
+    private SAMRecord next;
+    private boolean done = false;
+
+    ContainedRecordIterator(SAMRecordIterator source, QueryInterval[] intervals) {
+        this.source = source;
+        this.intervals = intervals;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !done) {
+            if (!source.hasNext()) {
+                finish();
+                break;
+            }
+            SAMRecord record = source.next();
+            int referenceIndex = record.getReferenceIndex();
+            int alignmentStart = record.getAlignmentStart();
+            if (referenceIndex < 0) {
+                finish();       // Unplaced reads come last
+                break;
+            }
+            // Skip the intervals that end before this record starts
+            while (current < intervals.length && 
+                    (intervals[current].referenceIndex < referenceIndex ||
+                     (intervals[current].referenceIndex == referenceIndex && intervals[current].end < alignmentStart))) {
+                current++;
+            }
+            if (current == intervals.length) {
+                finish();       // Sorted: nothing further can match
+                break;
+            }
+            QueryInterval interval = intervals[current];
+            if (interval.referenceIndex == referenceIndex &&
+                    alignmentStart >= interval.start &&
+                    record.getAlignmentEnd() <= interval.end) {
+                next = record;
+            }
+        }
+        return next != null;
+    }
+
+    private void finish() {
+        done = true;
+        source.close();
+    }
+
+    @Override
+    public SAMRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SAMRecord record = next;
+        next = null;
+        return record;
+    }
+}
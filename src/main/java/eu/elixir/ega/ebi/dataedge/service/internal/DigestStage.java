@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Checksums the buffers of one relay on a separate thread, while the relay
+ * thread moves on to send them. Updates are chained, so the digests see the
+ * buffers strictly in order. A buffer must not be reused before the future
+ * returned for it has completed.
+ *
+ * If the in and out digest are the same object (nothing is transformed in
+ * between) the bytes are only hashed once.
+ *
+ * @author asenf
+ */
+class DigestStage {
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final MessageDigest inDigest;
+    private final MessageDigest outDigest;
+    private final Executor executor;
+
+    private CompletableFuture<Void> tail = DONE;
+
+    /*
+     * Digests may be null; without an executor the digests are updated inline
+     */
+    DigestStage(MessageDigest inDigest, MessageDigest outDigest, Executor executor) {
+        this.inDigest = inDigest;
+        this.outDigest = (outDigest == inDigest) ? null : outDigest;
+        this.executor = executor;
+    }
+
+    boolean isEmpty() {
+        return inDigest == null && outDigest == null;
+    }
+
+    /*
+     * Digest the remaining bytes of the buffer (its position is not changed)
+     */
+    CompletableFuture<Void> update(ByteBuffer buffer) {
+        if (isEmpty()) {
+            return DONE;
+        }
+        final ByteBuffer view = buffer.duplicate();
+        if (executor == null) {
+            digest(view);
+            return DONE;
+        }
+        tail = tail.thenRunAsync(() -> digest(view), executor);
+        return tail;
+    }
+
+    private void digest(ByteBuffer view) {
+        if (inDigest != null) {
+            inDigest.update(view.duplicate());
+        }
+        if (outDigest != null) {
+            outDigest.update(view);
+        }
+    }
+
+    // Completes once all buffers submitted so far have been digested
+    CompletableFuture<Void> done() {
+        return tail;
+    }
+
+    static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            throw new IOException("Digest failed", ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of large, reusable transfer buffers. Buffers are allocated (on the
+ * heap, or off-heap if configured) the first time they are needed and are
+ * kept for the lifetime of the service, so streaming does not churn the heap.
+ *
+ * If all pooled buffers are in use a temporary heap buffer is handed out
+ * instead; it is simply dropped when released.
+ *
+ * @author asenf
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final boolean direct;
+
+    private final BlockingQueue<ByteBuffer> free;
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    private final AtomicInteger overflow = new AtomicInteger(0);
+
+    public DirectBufferPool(int bufferSize, int maxBuffers, boolean direct) {
+        if (bufferSize <= 0 || maxBuffers <= 0) {
+            throw new IllegalArgumentException("Buffer size and count must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    /*
+     * Obtain a cleared buffer - must be handed back via release()
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            if (allocated.incrementAndGet() <= maxBuffers) {
+                buffer = direct ? ByteBuffer.allocateDirect(bufferSize) :
+                                  ByteBuffer.allocate(bufferSize);
+            } else {
+                allocated.decrementAndGet();
+                overflow.incrementAndGet();
+                buffer = ByteBuffer.allocate(bufferSize); // Pool exhausted - temporary buffer
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        buffer.clear();
+        free.offer(buffer); // Temporary overflow buffers are dropped if the pool is full
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    public int getAvailable() {
+        return free.size();
+    }
+
+    public int getOverflow() {
+        return overflow.get();
+    }
+}
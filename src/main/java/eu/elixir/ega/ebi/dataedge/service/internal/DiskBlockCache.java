@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Node-local block cache on disk (SSD). The byte budget is split into fixed
+ * size slots inside a few memory-mapped segment files; blocks are copied in
+ * and out of the mapping, so cached data lives in the OS page cache rather
+ * than on the heap. When all slots are taken, the least recently used block
+ * is evicted. Blocks being read are pinned and never evicted underneath a
+ * reader.
+ *
+ * The index is held in memory only: segment files are recreated on start
+ * and deleted on close. They contain plaintext - the directory must be
+ * node-local and only accessible to this service.
+ *
+ * @author asenf
+ */
+public class DiskBlockCache implements BlockCache {
+
+    private static final Logger LOG = Logger.getLogger(DiskBlockCache.class.getName());
+
+    private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private final int slotSize;
+    private final int slotsPerSegment;
+    private final int slots;
+    private final Path[] files;
+    private final MappedByteBuffer[] segments;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    private long used = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    private static class Entry {
+        final int slot;
+        final int length;
+        int pins = 0;
+
+        Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    public DiskBlockCache(String directory, long budget, int slotSize) throws IOException {
+        if (slotSize <= 0 || budget < slotSize) {
+            throw new IllegalArgumentException("Cache budget must hold at least one block");
+        }
+        this.slotSize = slotSize;
+        this.slotsPerSegment = (int) Math.max(1, SEGMENT_SIZE / slotSize);
+        this.slots = (int) Math.min(Integer.MAX_VALUE, budget / slotSize);
+
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        try {
+            Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+        } catch (UnsupportedOperationException ex) {}
+
+        int segmentCount = (slots + slotsPerSegment - 1) / slotsPerSegment;
+        files = new Path[segmentCount];
+        segments = new MappedByteBuffer[segmentCount];
+        for (int i=0; i<segmentCount; i++) {
+            int segmentSlots = Math.min(slotsPerSegment, slots - i * slotsPerSegment);
+            long bytes = (long) segmentSlots * slotSize;
+            files[i] = dir.resolve("block-cache-" + i + ".seg");
+            try (RandomAccessFile raf = new RandomAccessFile(files[i].toFile(), "rw")) {
+                raf.setLength(0);
+                raf.setLength(bytes);
+                segments[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes); // Stays valid after close
+            }
+            files[i].toFile().deleteOnExit();
+        }
+        for (int i=0; i<slots; i++) {
+            free.add(i);
+        }
+        LOG.log(Level.INFO, "Disk block cache: {0} x {1} bytes in {2}", new Object[]{slots, slotSize, dir});
+    }
+
+    @Override
+    public int get(String fileId, long blockOffset, byte[] buffer) {
+        Entry entry;
+        synchronized (this) {
+            entry = index.get(key(fileId, blockOffset));
+            if (entry == null || entry.length > buffer.length) {
+                misses.incrementAndGet();
+                return -1;
+            }
+            entry.pins++;
+        }
+        try {
+            slot(entry.slot).get(buffer, 0, entry.length);
+            hits.incrementAndGet();
+            return entry.length;
+        } finally {
+            synchronized (this) {
+                entry.pins--;
+            }
+        }
+    }
+
+    @Override
+    public void put(String fileId, long blockOffset, byte[] data, int length) {
+        if (length <= 0 || length > slotSize) {
+            return;
+        }
+        String key = key(fileId, blockOffset);
+        int slot;
+        synchronized (this) {
+            if (index.containsKey(key) || (slot = allocate()) < 0) {
+                return;
+            }
+        }
+
+        slot(slot).put(data, 0, length); // Not visible to readers yet
+
+        synchronized (this) {
+            if (index.containsKey(key)) { // Added concurrently
+                free.push(slot);
+            } else {
+                index.put(key, new Entry(slot, length));
+                used += length;
+            }
+        }
+    }
+
+    // A free slot, or the least recently used unpinned one; -1 if all are pinned
+    private int allocate() {
+        if (!free.isEmpty()) {
+            return free.pop();
+        }
+        Iterator<Map.Entry<String, Entry>> iter = index.entrySet().iterator();
+        while (iter.hasNext()) {
+            Entry lru = iter.next().getValue();
+            if (lru.pins == 0) {
+                iter.remove();
+                used -= lru.length;
+                evictions.incrementAndGet();
+                return lru.slot;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer slot(int slot) {
+        ByteBuffer view = segments[slot / slotsPerSegment].duplicate();
+        int position = (slot % slotsPerSegment) * slotSize;
+        view.limit(position + slotSize);
+        view.position(position);
+        return view;
+    }
+
+    private static String key(String fileId, long blockOffset) {
+        return fileId + ":" + blockOffset;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.clear();
+        free.clear();
+        used = 0;
+        for (Path file:files) {
+            Files.deleteIfExists(file); // Mappings are released by the GC
+        }
+    }
+
+    public long getCapacity() {
+        return (long) slots * slotSize;
+    }
+
+    public synchronized long getSize() {
+        return used;
+    }
+
+    public synchronized int getBlocks() {
+        return index.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
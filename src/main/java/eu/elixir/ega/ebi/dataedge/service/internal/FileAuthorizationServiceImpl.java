@@ -0,0 +1,391 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import eu.elixir.ega.ebi.dataedge.config.InvalidInputException;
+import eu.elixir.ega.ebi.dataedge.config.NotFoundException;
+import eu.elixir.ega.ebi.dataedge.config.PermissionDeniedException;
+import eu.elixir.ega.ebi.dataedge.config.VerifyMessage;
+import eu.elixir.ega.ebi.dataedge.dto.CacheStatistics;
+import eu.elixir.ega.ebi.dataedge.dto.File;
+import eu.elixir.ega.ebi.dataedge.dto.FileDataset;
+import eu.elixir.ega.ebi.dataedge.dto.FileIndexFile;
+import eu.elixir.ega.ebi.dataedge.dto.FileManifest;
+import eu.elixir.ega.ebi.dataedge.service.FileAuthorizationService;
+import eu.elixir.ega.ebi.dataedge.service.FileResolutionService;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps file metadata, the datasets and the index of each file by file ID,
+ * so that checks on files that were seen before are memory lookups. The
+ * authorised datasets of a token user are its current authorities, so that
+ * grants and revocations apply at once. On a miss, the missing
+ * lookups are issued together; prefetch does the same for whole batches.
+ *
+ * Permissions from the X-Permissions header are verified once per header
+ * (by SHA-256 digest) and kept until their signed timestamp expires.
+ *
+ * Unknown files, and files the user may not access, are remembered for a
+ * short time (ega.cache.negative.ttl), so clients retrying them in a loop
+ * are answered here. Denials are keyed by the permissions they were decided
+ * on, so a new grant is not hidden by them.
+ *
+ * @author asenf
+ */
+@Service
+public class FileAuthorizationServiceImpl implements FileAuthorizationService {
+
+    @Autowired
+    private FileResolutionService fileResolutionService;
+    
+    @Value("${ega.resolve.timeout:30000}")
+    private long timeout; // ms
+    
+    @Value("${ega.prefetch.parallel:32}")
+    private int prefetchParallel; // Files looked up at a time
+    
+    @Value("${ega.prefetch.max:10000}")
+    private int prefetchMax;
+    
+    private final Cache<String, File> files;                // File ID -> metadata
+    private final Cache<String, Set<String>> fileDatasets;  // File ID -> datasets
+    private final Cache<String, String> indexFiles;         // File ID -> index file ID ("": none)
+    private final Cache<String, Verified> verified;         // X-Permissions digest -> datasets
+    
+    // Negative results, kept briefly so that retried lookups don't reach DOWNLOADER
+    private final Cache<String, Boolean> notFound;          // File ID
+    private final Cache<String, Boolean> denied;            // Principal + permissions + File ID
+
+    @Autowired
+    public FileAuthorizationServiceImpl(@Value("${ega.cache.file.size:100000}") long fileCacheSize,
+                                        @Value("${ega.cache.file.ttl:3600}") long fileCacheTtl,
+                                        @Value("${ega.cache.permissions.size:100000}") long permissionsCacheSize,
+                                        @Value("${ega.cache.negative.size:100000}") long negativeCacheSize,
+                                        @Value("${ega.cache.negative.ttl:30}") long negativeCacheTtl) {
+        this.files = CacheBuilder.newBuilder()
+                .maximumSize(fileCacheSize)
+                .expireAfterWrite(fileCacheTtl, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.fileDatasets = CacheBuilder.newBuilder()
+                .maximumSize(fileCacheSize)
+                .expireAfterWrite(fileCacheTtl, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.indexFiles = CacheBuilder.newBuilder()
+                .maximumSize(fileCacheSize)
+                .expireAfterWrite(fileCacheTtl, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.verified = CacheBuilder.newBuilder()
+                .maximumSize(permissionsCacheSize)
+                .expireAfterWrite(VerifyMessage.VALIDITY, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        this.notFound = CacheBuilder.newBuilder()
+                .maximumSize(negativeCacheSize)
+                .expireAfterWrite(negativeCacheTtl, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.denied = CacheBuilder.newBuilder()
+                .maximumSize(negativeCacheSize)
+                .expireAfterWrite(negativeCacheTtl, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+    
+    @Override
+    public Set<String> getPermissions(Authentication auth, HttpServletRequest request) {
+        Collection<? extends GrantedAuthority> authorities = auth.getAuthorities();
+        if (authorities != null && authorities.size() > 0) { // Token user: the grants of this token
+            HashSet<String> permissions_ = new HashSet<>();
+            for (GrantedAuthority next:authorities) {
+                permissions_.add(next.getAuthority());
+            }
+            return permissions_;
+        }
+        
+        // ELIXIR User Case: Obtain Permmissions from X-Permissions Header
+        String header = (request != null) ? request.getHeader("X-Permissions") : null;
+        if (header == null) {
+            return new HashSet<>();
+        }
+        String digest = Hashing.sha256().hashString(header, StandardCharsets.UTF_8).toString();
+        Verified cached = verified.getIfPresent(digest);
+        if (cached != null && cached.expires > System.currentTimeMillis()) {
+            return cached.datasets;
+        }
+        HashSet<String> permissions_ = new HashSet<>();
+        try {
+            VerifyMessage message = new VerifyMessage(header);
+            for (String ds:message.getPermissions()) {
+                if (ds != null) {
+                    permissions_.add(ds);
+                }
+            }
+            if (!permissions_.isEmpty()) { // Signature verified, not yet expired
+                Set<String> result = ImmutableSet.copyOf(permissions_);
+                verified.put(digest, new Verified(result, message.getExpires()));
+                return result;
+            }
+        } catch (Exception ex) {}
+        return permissions_;
+    }
+    
+    // Permissions of a verified X-Permissions header, and when they expire
+    private static class Verified {
+        private final Set<String> datasets;
+        private final long expires;
+        
+        Verified(Set<String> datasets, long expires) {
+            this.datasets = datasets;
+            this.expires = expires;
+        }
+    }
+
+    @Override
+    public File getFile(Authentication auth, String fileId, HttpServletRequest request) {
+        Set<String> authorised = getPermissions(auth, request);
+        String deniedKey = getPrincipal(auth, request, authorised) + "\n" + fileId;
+        if (denied.getIfPresent(deniedKey) != null) {
+            return null;
+        }
+        
+        Lookup lookup = new Lookup(fileId, false);
+        lookup.finish();
+        File reqFile = lookup.authorise(authorised);
+        if (reqFile == null) {
+            denied.put(deniedKey, Boolean.TRUE);
+        }
+        return reqFile;
+    }
+    
+    // Whose permissions apply: the user with its current authorities, or the X-Permissions header
+    private static String getPrincipal(Authentication auth, HttpServletRequest request, Set<String> authorised) {
+        Collection<? extends GrantedAuthority> authorities = auth.getAuthorities();
+        if ((authorities == null || authorities.isEmpty()) && request != null && request.getHeader("X-Permissions") != null) {
+            return auth.getName() + "\n" + request.getHeader("X-Permissions");
+        }
+        return auth.getName() + "\n" + String.join(",", new TreeSet<>(authorised));
+    }
+
+    @Override
+    public FileIndexFile getFileIndexFile(String fileId) {
+        String indexFileId = indexFiles.getIfPresent(fileId);
+        if (indexFileId == null) {
+            indexFileId = toIndexFileId(RemoteFileResolutionServiceImpl.await(fileResolutionService.getIndexFile(fileId), fileId, timeout));
+            indexFiles.put(fileId, indexFileId);
+        }
+        return indexFileId.isEmpty() ? null : new FileIndexFile(fileId, indexFileId);
+    }
+
+    @Override
+    public List<FileManifest> prefetch(Authentication auth, 
+                                       List<String> fileIds, 
+                                       String datasetId, 
+                                       HttpServletRequest request) {
+        Set<String> authorised = getPermissions(auth, request);
+        String principal = getPrincipal(auth, request, authorised);
+        
+        LinkedHashSet<String> ids = new LinkedHashSet<>();
+        if (fileIds != null) {
+            ids.addAll(fileIds);
+        }
+        if (datasetId != null && !datasetId.isEmpty()) {
+            if (!authorised.contains(datasetId)) {
+                throw new PermissionDeniedException(datasetId);
+            }
+            for (File f:RemoteFileResolutionServiceImpl.await(fileResolutionService.getDatasetFiles(datasetId), datasetId, timeout)) {
+                ids.add(f.getFileId());
+            }
+        }
+        ids.remove(null);
+        if (ids.size() > prefetchMax) {
+            throw new InvalidInputException("More than " + prefetchMax + " files");
+        }
+        
+        // A batch of files is looked up at a time, to bound the load on DOWNLOADER
+        List<FileManifest> manifest = new ArrayList<>(ids.size());
+        List<String> all = new ArrayList<>(ids);
+        int parallel = Math.max(1, prefetchParallel);
+        for (int i = 0; i < all.size(); i += parallel) {
+            List<Lookup> batch = new ArrayList<>(parallel);
+            for (String fileId:all.subList(i, Math.min(all.size(), i + parallel))) {
+                batch.add(new Lookup(fileId, true));
+            }
+            for (Lookup lookup:batch) {
+                FileManifest entry = lookup.toManifest(authorised);
+                if (entry.getError() != null && entry.getError().equals("PermissionDenied")) {
+                    denied.put(principal + "\n" + entry.getFileId(), Boolean.TRUE);
+                }
+                manifest.add(entry);
+            }
+        }
+        return manifest;
+    }
+    
+    private static String toIndexFileId(FileIndexFile indexFile) {
+        return (indexFile == null || indexFile.getIndexFileId() == null) ? "" : indexFile.getIndexFileId();
+    }
+    
+    /*
+     * Metadata of one file: cached parts are taken from the caches, the
+     * others are requested together when the lookup is created
+     */
+    private class Lookup {
+        
+        private final String fileId;
+        private File file;
+        private Set<String> datasets;
+        private String indexFileId;
+        private CompletableFuture<File> forFile;
+        private CompletableFuture<FileDataset[]> forDatasets;
+        private CompletableFuture<FileIndexFile> forIndex;
+        
+        Lookup(String fileId, boolean withIndex) {
+            this.fileId = fileId;
+            if (notFound.getIfPresent(fileId) != null) {
+                return; // finish() fails without asking DOWNLOADER again
+            }
+            file = files.getIfPresent(fileId);
+            datasets = fileDatasets.getIfPresent(fileId);
+            indexFileId = withIndex ? indexFiles.getIfPresent(fileId) : null;
+            forFile = (file == null) ? fileResolutionService.getFile(fileId) : null;
+            forDatasets = (datasets == null) ? fileResolutionService.getDatasets(fileId) : null;
+            forIndex = (withIndex && indexFileId == null) ? fileResolutionService.getIndexFile(fileId) : null;
+        }
+        
+        // Waits for the requested parts and caches them
+        void finish() {
+            if (file == null && forFile == null) {
+                throw new NotFoundException(fileId, "4");
+            }
+            try {
+                if (forDatasets != null) {
+                    ImmutableSet.Builder<String> builder = ImmutableSet.builder(); // Keeps DOWNLOADER order
+                    for (FileDataset f:RemoteFileResolutionServiceImpl.await(forDatasets, fileId, timeout)) {
+                        if (f.getDatasetId() != null) {
+                            builder.add(f.getDatasetId());
+                        }
+                    }
+                    datasets = builder.build();
+                    fileDatasets.put(fileId, datasets);
+                }
+                if (forFile != null) {
+                    file = RemoteFileResolutionServiceImpl.await(forFile, fileId, timeout);
+                    files.put(fileId, file);
+                }
+                if (forIndex != null) {
+                    indexFileId = toIndexFileId(RemoteFileResolutionServiceImpl.await(forIndex, fileId, timeout));
+                    indexFiles.put(fileId, indexFileId);
+                }
+            } catch (NotFoundException ex) {
+                notFound.put(fileId, Boolean.TRUE);
+                throw ex;
+            } finally {
+                cancel(forFile);
+                cancel(forDatasets);
+                cancel(forIndex);
+            }
+        }
+        
+        // Copy of the file with the first authorised dataset that contains it; null if there is none
+        File authorise(Set<String> authorised) {
+            for (String dataset_id:datasets) {
+                if (authorised.contains(dataset_id)) {
+                    return new File(file.getFileId(),   // Cached instance is shared
+                                    dataset_id,
+                                    file.getFileName(),
+                                    file.getFileSize(),
+                                    file.getChecksum(),
+                                    file.getChecksumType(),
+                                    file.getStatus());
+                }
+            }
+            return null;
+        }
+        
+        FileManifest toManifest(Set<String> authorised) {
+            try {
+                finish();
+            } catch (NotFoundException ex) {
+                return new FileManifest(fileId, "NotFound");
+            } catch (RuntimeException ex) {
+                return new FileManifest(fileId, ex.getMessage());
+            }
+            File reqFile = authorise(authorised);
+            if (reqFile == null) {
+                return new FileManifest(fileId, "PermissionDenied");
+            }
+            return new FileManifest(reqFile.getFileId(), 
+                                    reqFile.getDatasetId(), 
+                                    reqFile.getFileName(), 
+                                    reqFile.getFileSize(), 
+                                    reqFile.getChecksum(), 
+                                    reqFile.getChecksumType(), 
+                                    (indexFileId == null || indexFileId.isEmpty()) ? null : indexFileId, 
+                                    null);
+        }
+    }
+    
+    private static void cancel(CompletableFuture<?> future) {
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    @Override
+    public List<CacheStatistics> getStats() {
+        List<CacheStatistics> stats = new ArrayList<>();
+        stats.add(getStats("files", files));
+        stats.add(getStats("fileDatasets", fileDatasets));
+        stats.add(getStats("indexFiles", indexFiles));
+        stats.add(getStats("verified", verified));
+        stats.add(getStats("notFound", notFound));
+        stats.add(getStats("denied", denied));
+        return stats;
+    }
+    
+    private static CacheStatistics getStats(String name, Cache<?, ?> cache) {
+        CacheStats stats = cache.stats();
+        return new CacheStatistics(name, 
+                                   cache.size(), 
+                                   stats.hitCount(), 
+                                   stats.missCount(), 
+                                   stats.hitRate(), 
+                                   stats.evictionCount());
+    }
+}
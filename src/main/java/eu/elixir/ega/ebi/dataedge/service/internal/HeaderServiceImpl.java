@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import com.netflix.hystrix.contrib.javanica.annotation.HystrixCommand;
+import eu.elixir.ega.ebi.dataedge.config.InternalErrorException;
+import eu.elixir.ega.ebi.dataedge.service.HeaderService;
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.StringLineReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.stereotype.Service;
+
+/**
+ * Reads headers through the shared block caches and keeps them in the
+ * "headerFile" cache, keyed by file ID only. The cached form is the deflated
+ * SAM header text, so the cache can be bounded by weight in bytes.
+ *
+ * @author asenf
+ */
+@Service
+public class HeaderServiceImpl implements HeaderService {
+
+    @Autowired
+    private ArchiveStreamFactory archiveStreamFactory;
+    
+    @Override
+    @HystrixCommand
+    @Cacheable(cacheNames="headerFile", key="#fileId")
+    public byte[] getHeader(String fileId, URL resUrl, long fileSize, String extension) {
+        try (SeekableStream cIn = archiveStreamFactory.open(resUrl, fileId, fileSize, extension)) {
+            SamReader reader = 
+                SamReaderFactory.make() 
+                  .validationStringency(ValidationStringency.LENIENT) 
+                  .samRecordFactory(DefaultSAMRecordFactory.getInstance()) 
+                  .open(SamInputResource.of(cIn));  
+            SAMFileHeader header = reader.getFileHeader();
+            reader.close();
+            return encode(header);
+        } catch (IOException ex) {
+            throw new InternalErrorException(ex.getMessage(), "10");
+        }
+    }
+    
+    static byte[] encode(SAMFileHeader header) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer out = new OutputStreamWriter(new DeflaterOutputStream(bytes), StandardCharsets.UTF_8)) {
+            new SAMTextHeaderCodec().encode(out, header);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /*
+     * Header from the cached form (a new, modifiable object each time)
+     */
+    public static SAMFileHeader decode(byte[] encoded, String source) throws IOException {
+        StringWriter text = new StringWriter();
+        try (Reader in = new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(encoded)), StandardCharsets.UTF_8)) {
+            char[] buf = new char[8192];
+            int r;
+            while ((r = in.read(buf)) > 0) {
+                text.write(buf, 0, r);
+            }
+        }
+        SAMTextHeaderCodec codec = new SAMTextHeaderCodec();
+        codec.setValidationStringency(ValidationStringency.LENIENT);
+        return codec.decode(new StringLineReader(text.toString()), source);
+    }
+}
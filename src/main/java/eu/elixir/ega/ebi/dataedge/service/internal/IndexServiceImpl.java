@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import com.netflix.hystrix.contrib.javanica.annotation.HystrixCommand;
+import eu.elixir.ega.ebi.dataedge.config.InternalErrorException;
+import eu.elixir.ega.ebi.dataedge.service.IndexService;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.stereotype.Service;
+
+/**
+ * Index files are read from RES once and kept in the "index" cache, which is
+ * bounded by weight in bytes. BAI and tabix/CSI files are kept parsed (BamIndex,
+ * VariantIndex), so region queries need no index I/O at all.
+ *
+ * @author asenf
+ */
+@Service
+public class IndexServiceImpl implements IndexService {
+
+    @Autowired
+    private ArchiveStreamFactory archiveStreamFactory;
+    
+    @Override
+    @HystrixCommand
+    @Cacheable(cacheNames="index", key="'bai:' + #indexFileId")
+    public BamIndex getBamIndex(String indexFileId, URL resUrl, long fileSize) {
+        try (SeekableStream in = archiveStreamFactory.open(resUrl, indexFileId, fileSize, "")) {
+            return BamIndex.read(in);
+        } catch (IOException ex) {
+            throw new InternalErrorException(ex.getMessage(), "11");
+        }
+    }
+
+    @Override
+    @HystrixCommand
+    @Cacheable(cacheNames="index", key="'tbi:' + #indexFileId")
+    public VariantIndex getVariantIndex(String indexFileId, URL resUrl, long fileSize) {
+        try (SeekableStream in = archiveStreamFactory.open(resUrl, indexFileId, fileSize, "")) {
+            return VariantIndex.read(in);
+        } catch (IOException ex) {
+            throw new InternalErrorException(ex.getMessage(), "11");
+        }
+    }
+
+    @Override
+    @HystrixCommand
+    @Cacheable(cacheNames="index", key="'raw:' + #indexFileId")
+    public byte[] getIndexBytes(String indexFileId, URL resUrl, long fileSize) {
+        try (SeekableStream in = archiveStreamFactory.open(resUrl, indexFileId, fileSize, "")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(0, Math.min(fileSize, Integer.MAX_VALUE)));
+            byte[] buf = new byte[64 * 1024];
+            int r;
+            while ((r = in.read(buf)) > 0) {
+                bytes.write(buf, 0, r);
+            }
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new InternalErrorException(ex.getMessage(), "11");
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide CRAM reference: the FASTA is memory-mapped (located through
+ * its .fai index), and the bases of recently used sequences are kept in one
+ * cache shared by all CRAM reads and writes, bounded by bytes. Concurrent
+ * requests for a sequence that is not cached load it once.
+ *
+ * Sequences are found by name (also with/without a 'chr' prefix) or by the
+ * MD5 of their bases, once that sequence has been loaded.
+ *
+ * @author asenf
+ */
+public class MappedReferenceSource implements CRAMReferenceSource {
+
+    private static final Logger LOG = Logger.getLogger(MappedReferenceSource.class.getName());
+
+    private final File fasta;
+    private volatile Map<String, FaiEntry> index;                   // Read on first use
+    private final Map<String, String> md5Names = new ConcurrentHashMap<>();
+    private final LoadingCache<String, byte[]> bases;
+
+    // One .fai line: where a sequence's bases are and how they are wrapped
+    private static class FaiEntry {
+        final long length;
+        final long offset;
+        final int lineBases;
+        final int lineWidth;
+        MappedByteBuffer mapped;
+
+        FaiEntry(long length, long offset, int lineBases, int lineWidth) {
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+    }
+
+    public MappedReferenceSource(String fastaPath, long cacheSize) {
+        this.fasta = new File(fastaPath);
+        this.bases = CacheBuilder.newBuilder()
+                .maximumWeight(cacheSize)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String key, byte[] value) {
+                        return value.length;
+                    }
+                })
+                .recordStats()
+                .build(new CacheLoader<String, byte[]>() {
+                    @Override
+                    public byte[] load(String name) throws IOException {
+                        return readBases(name);
+                    }
+                });
+    }
+
+    @Override
+    public byte[] getReferenceBases(SAMSequenceRecord record, boolean tryNameVariants) {
+        try {
+            String name = findName(record, tryNameVariants);
+            if (name == null) {
+                return null;
+            }
+            return bases.get(name);
+        } catch (ExecutionException | IOException ex) {
+            LOG.log(Level.SEVERE, "Reference " + record.getSequenceName() + " not available", ex);
+            return null;
+        }
+    }
+
+    private String findName(SAMSequenceRecord record, boolean tryNameVariants) throws IOException {
+        Map<String, FaiEntry> fai = getIndex();
+        String name = record.getSequenceName();
+        if (fai.containsKey(name)) {
+            return name;
+        }
+        if (record.getMd5() != null && md5Names.containsKey(record.getMd5())) {
+            return md5Names.get(record.getMd5());
+        }
+        if (tryNameVariants) {
+            String variant = name.startsWith("chr") ? name.substring(3) : "chr" + name;
+            if (fai.containsKey(variant)) {
+                return variant;
+            }
+        }
+        return null;
+    }
+
+    private Map<String, FaiEntry> getIndex() throws IOException {
+        if (index == null) {
+            synchronized (this) {
+                if (index == null) {
+                    index = readIndex(new File(fasta.getPath() + ".fai"));
+                }
+            }
+        }
+        return index;
+    }
+
+    private static Map<String, FaiEntry> readIndex(File fai) throws IOException {
+        Map<String, FaiEntry> entries = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(fai))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t");
+                if (f.length >= 5) {
+                    entries.put(f[0], new FaiEntry(Long.parseLong(f[1]), Long.parseLong(f[2]),
+                                                   Integer.parseInt(f[3]), Integer.parseInt(f[4])));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /*
+     * Bases of one sequence, without line breaks, upper case
+     */
+    private byte[] readBases(String name) throws IOException {
+        FaiEntry entry = getIndex().get(name);
+        if (entry.length > Integer.MAX_VALUE) {
+            throw new IOException("Reference " + name + " too long");
+        }
+        ByteBuffer view = map(entry).duplicate();
+        byte[] result = new byte[(int) entry.length];
+        int position = 0;
+        int lineStart = 0;
+        while (position < result.length) {
+            int n = Math.min(entry.lineBases, result.length - position);
+            view.position(lineStart);
+            view.get(result, position, n);
+            position += n;
+            lineStart += entry.lineWidth;
+        }
+        for (int i=0; i<result.length; i++) {
+            if (result[i] >= 'a' && result[i] <= 'z') {
+                result[i] -= 32;
+            }
+        }
+        md5Names.put(md5(result), name);
+        return result;
+    }
+
+    private MappedByteBuffer map(FaiEntry entry) throws IOException {
+        synchronized (entry) {
+            if (entry.mapped == null) {
+                long lines = (entry.length + entry.lineBases - 1) / entry.lineBases;
+                long size = Math.min(lines * entry.lineWidth, fasta.length() - entry.offset);
+                try (RandomAccessFile file = new RandomAccessFile(fasta, "r")) {
+                    entry.mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, size);
+                }
+            }
+            return entry.mapped;
+        }
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            return String.format("%032x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException ex) {
+            return "";
+        }
+    }
+
+    public CacheStats getStats() {
+        return bases.stats();
+    }
+
+    public long getCachedBytes() {
+        long size = 0;
+        for (byte[] value:bases.asMap().values()) {
+            size += value.length;
+        }
+        return size;
+    }
+}
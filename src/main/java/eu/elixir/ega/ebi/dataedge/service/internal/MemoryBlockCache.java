@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide block cache in off-heap memory, shared by all requests.
+ *
+ * The byte budget is divided over independently locked stripes (a block's
+ * stripe is chosen by its key), so concurrent readers of different blocks
+ * rarely contend. Each stripe evicts its least recently used block.
+ *
+ * Admission: a block is only cached the second time it is offered within
+ * a stripe's recent history, so one-off sequential reads (e.g. a full file
+ * scan) do not push out the blocks of popular files.
+ *
+ * @author asenf
+ */
+public class MemoryBlockCache implements BlockCache {
+
+    private final int slotSize;
+    private final Stripe[] stripes;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong rejections = new AtomicLong(0);
+
+    public MemoryBlockCache(long budget, int slotSize, int stripeCount) {
+        if (slotSize <= 0 || budget < slotSize) {
+            throw new IllegalArgumentException("Cache budget must hold at least one block");
+        }
+        this.slotSize = slotSize;
+        long slots = budget / slotSize;
+        int count = (int) Math.max(1, Math.min(stripeCount, slots));
+        this.stripes = new Stripe[count];
+        for (int i=0; i<count; i++) {
+            stripes[i] = new Stripe((int) (slots / count + (i < slots % count ? 1 : 0)));
+        }
+    }
+
+    @Override
+    public int get(String fileId, long blockOffset, byte[] buffer) {
+        String key = key(fileId, blockOffset);
+        int length = stripe(key).get(key, buffer);
+        if (length < 0) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return length;
+    }
+
+    @Override
+    public void put(String fileId, long blockOffset, byte[] data, int length) {
+        if (length <= 0 || length > slotSize) {
+            return;
+        }
+        String key = key(fileId, blockOffset);
+        stripe(key).put(key, data, length);
+    }
+
+    private Stripe stripe(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    private static String key(String fileId, long blockOffset) {
+        return fileId + ":" + blockOffset;
+    }
+
+    @Override
+    public void close() {
+        for (Stripe stripe:stripes) {
+            stripe.clear();
+        }
+    }
+
+    /*
+     * One independently locked part of the cache
+     */
+    private class Stripe {
+
+        private final int capacity;                         // slots
+        private final LinkedHashMap<String, ByteBuffer> blocks = new LinkedHashMap<>(64, 0.75f, true);
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private final LinkedHashMap<String, Boolean> seen;  // Admission history (keys only)
+        private int allocated = 0;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            final int history = Math.max(16, capacity * 2);
+            this.seen = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > history;
+                }
+            };
+        }
+
+        synchronized int get(String key, byte[] buffer) {
+            ByteBuffer block = blocks.get(key);
+            if (block == null || block.remaining() > buffer.length) {
+                return -1;
+            }
+            int length = block.remaining();
+            block.duplicate().get(buffer, 0, length);
+            return length;
+        }
+
+        synchronized void put(String key, byte[] data, int length) {
+            if (blocks.containsKey(key)) {
+                return;
+            }
+            if (seen.remove(key) == null) { // First sighting: remember, do not cache yet
+                seen.put(key, Boolean.TRUE);
+                rejections.incrementAndGet();
+                return;
+            }
+            ByteBuffer block = allocate();
+            if (block == null) {
+                return;
+            }
+            block.clear();
+            block.put(data, 0, length);
+            block.flip();
+            blocks.put(key, block);
+        }
+
+        private ByteBuffer allocate() {
+            if (!free.isEmpty()) {
+                return free.pop();
+            }
+            if (allocated < capacity) {
+                allocated++;
+                return ByteBuffer.allocateDirect(slotSize);
+            }
+            Iterator<ByteBuffer> lru = blocks.values().iterator();
+            if (lru.hasNext()) {
+                ByteBuffer block = lru.next();
+                lru.remove();
+                evictions.incrementAndGet();
+                return block;
+            }
+            return null;
+        }
+
+        synchronized long size() {
+            long size = 0;
+            for (ByteBuffer block:blocks.values()) {
+                size += block.remaining();
+            }
+            return size;
+        }
+
+        synchronized int count() {
+            return blocks.size();
+        }
+
+        synchronized void clear() {
+            free.addAll(blocks.values());
+            blocks.clear();
+            seen.clear();
+        }
+    }
+
+    public long getCapacity() {
+        long slots = 0;
+        for (Stripe stripe:stripes) {
+            slots += stripe.capacity;
+        }
+        return slots * slotSize;
+    }
+
+    public long getSize() {
+        long size = 0;
+        for (Stripe stripe:stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public int getBlocks() {
+        int count = 0;
+        for (Stripe stripe:stripes) {
+            count += stripe.count();
+        }
+        return count;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BGZF output whose blocks are deflated on a shared worker pool. Up to
+ * 'depth' blocks of one stream are compressed concurrently; they are written
+ * to the underlying stream strictly in order. flush() ends the current block
+ * and waits until everything written so far has reached the underlying
+ * stream; close() also appends the BGZF EOF block.
+ *
+ * @author asenf
+ */
+public class ParallelBgzfOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final ThreadLocal<Deflater> deflaters;
+    private final int depth;
+
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private boolean closed = false;
+
+    ParallelBgzfOutputStream(OutputStream out, ExecutorService executor, ThreadLocal<Deflater> deflaters, int depth) {
+        this.out = out;
+        this.executor = executor;
+        this.deflaters = deflaters;
+        this.depth = Math.max(1, depth);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == BLOCK_SIZE) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        while (inFlight.size() >= depth) {
+            writeCompleted(inFlight.poll());
+        }
+        final byte[] data = block;
+        final int length = blockLength;
+        inFlight.add(executor.submit(() -> deflate(data, length)));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+    }
+
+    private void writeCompleted(Future<byte[]> future) throws IOException {
+        try {
+            out.write(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            throw new IOException("BGZF compression failed", ex.getCause());
+        }
+    }
+
+    /*
+     * One complete BGZF block (gzip member with the 'BC' extra field)
+     */
+    private byte[] deflate(byte[] data, int length) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] buffer = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        int header = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+        int footer = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int compressedLength = deflater.deflate(buffer, header, buffer.length - header - footer);
+        if (!deflater.finished()) { // Incompressible - store the data instead
+            Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+            try {
+                store.setInput(data, 0, length);
+                store.finish();
+                compressedLength = store.deflate(buffer, header, buffer.length - header - footer);
+            } finally {
+                store.end();
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int total = header + compressedLength + footer;
+
+        System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, buffer, 0,
+                         BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+        putShort(buffer, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, total - 1);
+        putInt(buffer, header + compressedLength, (int) crc.getValue());
+        putInt(buffer, header + compressedLength + 4, length);
+        return Arrays.copyOf(buffer, total);
+    }
+
+    private static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off+1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        putShort(b, off, value);
+        putShort(b, off+2, value >>> 16);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        submitBlock();
+        while (!inFlight.isEmpty()) {
+            writeCompleted(inFlight.poll());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        } finally {
+            for (Future<byte[]> future:inFlight) {
+                future.cancel(false);
+            }
+            out.close();
+        }
+    }
+}
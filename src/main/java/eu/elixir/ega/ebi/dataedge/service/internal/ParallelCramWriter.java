@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.CRAMContainerStreamWriter;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.build.ContainerFactory;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * CRAM output whose containers are built and compressed on a worker pool.
+ * Records are collected in batches; each batch is encoded into containers by
+ * its own CRAMContainerStreamWriter (without header or EOF), and the
+ * encoded batches are written strictly in order, between the file header and
+ * the EOF container. At most 'depth' batches are encoded at a time.
+ *
+ * Containers carry the running count of the records before them; each
+ * batch writer starts counting at the records of the batches before it.
+ * htsjdk keeps that counter private, so it is set by reflection - if that
+ * is not possible, records are encoded by the file writer, in sequence.
+ *
+ * @author asenf
+ */
+class ParallelCramWriter implements Closeable {
+
+    private static final Field CONTAINER_FACTORY;           // CRAMContainerStreamWriter.containerFactory
+    private static final Field RECORD_COUNTER;              // ContainerFactory.globalRecordCounter
+
+    static {
+        Field factory = null, counter = null;
+        try {
+            factory = CRAMContainerStreamWriter.class.getDeclaredField("containerFactory");
+            counter = ContainerFactory.class.getDeclaredField("globalRecordCounter");
+            factory.setAccessible(true);
+            counter.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            factory = counter = null;
+        }
+        CONTAINER_FACTORY = factory;
+        RECORD_COUNTER = counter;
+    }
+
+    private final OutputStream out;
+    private final CRAMReferenceSource source;
+    private final SAMFileHeader header;
+    private final String id;
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final int depth;
+
+    private final CRAMContainerStreamWriter fileWriter;     // Header and EOF
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private List<SAMRecord> batch;
+    private long records = 0;                               // Records in the submitted batches
+    private boolean closed = false;
+
+    ParallelCramWriter(OutputStream out,
+                       CRAMReferenceSource source,
+                       SAMFileHeader header,
+                       String id,
+                       ExecutorService executor,
+                       int batchSize,
+                       int depth) {
+        this.out = out;
+        this.source = source;
+        this.header = header;
+        this.id = id;
+        this.executor = executor;
+        this.batchSize = Math.max(1, batchSize);
+        this.depth = Math.max(1, depth);
+        this.fileWriter = new CRAMContainerStreamWriter(out, null, source, header, id);
+        this.fileWriter.writeHeader(header);
+        this.batch = new ArrayList<>(this.batchSize);
+    }
+
+    void addAlignment(SAMRecord record) throws IOException {
+        if (RECORD_COUNTER == null) {
+            fileWriter.writeAlignment(record);
+            return;
+        }
+        batch.add(record);
+        if (batch.size() >= batchSize) {
+            submitBatch();
+        }
+    }
+
+    private void submitBatch() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        while (inFlight.size() >= depth) {
+            writeCompleted(inFlight.poll());
+        }
+        final List<SAMRecord> next = batch;
+        final long first = records;
+        inFlight.add(executor.submit(() -> encode(next, first)));
+        records += next.size();
+        batch = new ArrayList<>(batchSize);
+    }
+
+    private byte[] encode(List<SAMRecord> batch, long first) throws IllegalAccessException {
+        ByteArrayOutputStream containers = new ByteArrayOutputStream();
+        CRAMContainerStreamWriter writer = new CRAMContainerStreamWriter(containers, null, source, header, id);
+        RECORD_COUNTER.setLong(CONTAINER_FACTORY.get(writer), first);
+        for (SAMRecord record:batch) {
+            writer.writeAlignment(record);
+        }
+        writer.finish(false);
+        return containers.toByteArray();
+    }
+
+    private void writeCompleted(Future<byte[]> future) throws IOException {
+        try {
+            out.write(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            throw new IOException("CRAM encoding failed", ex.getCause());
+        }
+    }
+
+    /*
+     * Writes the remaining containers and the EOF container; closes the output
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBatch();
+            while (!inFlight.isEmpty()) {
+                writeCompleted(inFlight.poll());
+            }
+        } finally {
+            for (Future<byte[]> future:inFlight) {
+                future.cancel(false);
+            }
+            fileWriter.finish(true);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records contained in sorted, merged query intervals, decoded in parallel.
+ * The intervals are cut into pieces of 'pieceLength' bases; each piece is
+ * queried by its own task with its own reader, and the records are handed
+ * out in piece order. A record belongs to the piece its alignment starts in,
+ * so records overlapping two pieces are returned once. At most 'window'
+ * pieces are in flight, each buffering at most 'depth' records.
+ *
+ * A piece never blocks a thread of the shared executor: when its queue is
+ * full the task ends, keeping its reader open, and it is resubmitted once
+ * the consumer has drained half of the queue. A slow client thus holds
+ * readers and buffered records, but no executor threads.
+ *
+ * @author asenf
+ */
+class ParallelRegionIterator implements Iterator<SAMRecord>, AutoCloseable {
+
+    /*
+     * A new reader over the same file (one per piece)
+     */
+    interface ReaderOpener {
+        SamReader open() throws IOException;
+    }
+
+    private static final SAMRecord END = new SAMRecord(null);
+
+    private final ReaderOpener opener;
+    private final ExecutorService executor;
+    private final int window;
+    private final int depth;
+
+    private final Iterator<QueryInterval[]> pieces;      // {piece, interval it was cut from}
+    private final ArrayDeque<Piece> inFlight = new ArrayDeque<>();
+    private SAMRecord next;
+    private volatile boolean closed = false;
+
+    ParallelRegionIterator(ReaderOpener opener,
+                           QueryInterval[] intervals,
+                           SAMFileHeader header,
+                           ExecutorService executor,
+                           int pieceLength,
+                           int window,
+                           int depth) {
+        this.opener = opener;
+        this.executor = executor;
+        this.window = Math.max(1, window);
+        this.depth = Math.max(1, depth);
+        this.pieces = cut(intervals, header, Math.max(1, pieceLength)).iterator();
+        fillWindow();
+    }
+
+    private static List<QueryInterval[]> cut(QueryInterval[] intervals, SAMFileHeader header, int pieceLength) {
+        List<QueryInterval[]> pieces = new ArrayList<>();
+        for (QueryInterval interval:intervals) {
+            int length = header.getSequence(interval.referenceIndex).getSequenceLength();
+            int end = (interval.end <= 0) ? length : Math.min(interval.end, length);
+            for (long start = interval.start; start <= end; start += pieceLength) {
+                int pieceEnd = (int) Math.min(end, start + pieceLength - 1);
+                pieces.add(new QueryInterval[]{new QueryInterval(interval.referenceIndex, (int) start, pieceEnd), interval});
+            }
+        }
+        return pieces;
+    }
+
+    private void fillWindow() {
+        while (!closed && inFlight.size() < window && pieces.hasNext()) {
+            QueryInterval[] piece = pieces.next();
+            Piece p = new Piece(piece[0], piece[1]);
+            inFlight.add(p);
+            executor.execute(p);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            Piece head = inFlight.peek();
+            if (head == null) {
+                return false;
+            }
+            SAMRecord record = head.take();
+            if (record == END) {
+                inFlight.poll();
+                fillWindow();
+            } else {
+                next = record;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public SAMRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SAMRecord record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Piece piece:inFlight) {
+            piece.queue.clear();
+            piece.resume(); // Suspended pieces close their readers
+        }
+        inFlight.clear();
+    }
+
+    /*
+     * One piece of an interval, decoded into a bounded queue by a task that
+     * ends (suspends) whenever the queue is full
+     */
+    private class Piece implements Runnable {
+
+        private final QueryInterval piece;
+        private final QueryInterval interval;
+        private final BlockingQueue<SAMRecord> queue;
+        private final AtomicBoolean suspended = new AtomicBoolean(false);
+        private volatile RuntimeException error;
+
+        // Only used by the (single) running task of this piece
+        private SamReader reader;
+        private SAMRecordIterator records;
+
+        Piece(QueryInterval piece, QueryInterval interval) {
+            this.piece = piece;
+            this.interval = interval;
+            this.queue = new ArrayBlockingQueue<>(depth + 1); // Room for END
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (records == null) {
+                    reader = opener.open();
+                    records = reader.query(new QueryInterval[]{piece}, false);
+                }
+                while (!closed) {
+                    if (queue.size() >= depth) {
+                        if (suspend()) {
+                            continue;
+                        }
+                        return;     // Resubmitted by take()
+                    }
+                    if (!records.hasNext()) {
+                        break;
+                    }
+                    SAMRecord record = records.next();
+                    int start = record.getAlignmentStart();
+                    if (start < piece.start || start > piece.end) {
+                        continue;   // Returned by the neighbouring piece
+                    }
+                    if (interval.end > 0 && record.getAlignmentEnd() > interval.end) {
+                        continue;   // Not contained in the query interval
+                    }
+                    queue.offer(record);
+                }
+            } catch (IOException ex) {
+                error = new IllegalStateException("Region " + piece + " failed", ex);
+            } catch (RuntimeException ex) {
+                error = ex;
+            }
+            end();
+        }
+
+        // True if the queue was drained meanwhile (or the iterator closed), and the task carries on
+        private boolean suspend() {
+            suspended.set(true);
+            return (closed || queue.size() <= depth / 2) && suspended.compareAndSet(true, false);
+        }
+
+        void resume() {
+            if (suspended.compareAndSet(true, false)) {
+                executor.execute(this);
+            }
+        }
+
+        private void end() {
+            try {
+                if (records != null) {
+                    records.close();
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException | RuntimeException ex) {}
+            queue.offer(END);
+        }
+
+        SAMRecord take() {
+            try {
+                SAMRecord record = queue.take();
+                if (record == END) {
+                    if (error != null) {
+                        throw error;
+                    }
+                } else if (queue.size() <= depth / 2) {
+                    resume();
+                }
+                return record;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import eu.elixir.ega.ebi.dataedge.config.InvalidInputException;
+import htsjdk.samtools.SAMRecord;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * htsget 'fields', 'tags' and 'notags' applied to records before they are
+ * encoded. Fields that were not requested are set to their SAM default
+ * ('*' or 0); tags are kept or stripped as requested. An empty 'tags'
+ * parameter means no tags at all, unlike an absent one.
+ *
+ * @author asenf
+ */
+class RecordFieldFilter {
+
+    static final List<String> FIELDS = Arrays.asList("QNAME", "FLAG", "RNAME", "POS", "MAPQ", "CIGAR",
+                                                     "RNEXT", "PNEXT", "TLEN", "SEQ", "QUAL");
+
+    private final Set<String> fields;   // null: all fields
+    private final Set<String> tags;     // null: all tags, empty: none
+    private final Set<String> notags;
+
+    private RecordFieldFilter(Set<String> fields, Set<String> tags, Set<String> notags) {
+        this.fields = fields;
+        this.tags = tags;
+        this.notags = notags;
+    }
+
+    /*
+     * Filter for the request parameters, or null if records are passed unchanged
+     */
+    static RecordFieldFilter of(List<String> fields, List<String> tags, List<String> notags) {
+        Set<String> fieldSet = toSet(fields, true);
+        Set<String> tagSet = toSet(tags, false);
+        Set<String> notagSet = toSet(notags, false);
+        if (fieldSet != null) {
+            for (String field:fieldSet) {
+                if (!FIELDS.contains(field)) {
+                    throw new InvalidInputException("field " + field);
+                }
+            }
+            if (fieldSet.isEmpty() || fieldSet.containsAll(FIELDS)) {
+                fieldSet = null;
+            }
+        }
+        if (notagSet != null && notagSet.isEmpty()) {
+            notagSet = null;
+        }
+        if (tagSet != null && notagSet != null) {
+            for (String tag:tagSet) {
+                if (notagSet.contains(tag)) {
+                    throw new InvalidInputException("tag " + tag + " in both tags and notags");
+                }
+            }
+        }
+        if (fieldSet == null && tagSet == null && notagSet == null) {
+            return null;
+        }
+        return new RecordFieldFilter(fieldSet, tagSet, notagSet);
+    }
+
+    // null if the parameter is absent; empty if it was given without values
+    private static Set<String> toSet(List<String> values, boolean upperCase) {
+        if (values == null) {
+            return null;
+        }
+        Set<String> set = new HashSet<>();
+        for (String value:values) {
+            if (value != null && value.trim().length() > 0) {
+                set.add(upperCase ? value.trim().toUpperCase() : value.trim());
+            }
+        }
+        return set;
+    }
+
+    SAMRecord apply(SAMRecord record) {
+        if (fields != null) {
+            if (!fields.contains("QNAME")) record.setReadName("*");
+            if (!fields.contains("FLAG")) record.setFlags(0);
+            if (!fields.contains("RNAME")) record.setReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+            if (!fields.contains("POS")) record.setAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
+            if (!fields.contains("MAPQ")) record.setMappingQuality(SAMRecord.UNKNOWN_MAPPING_QUALITY);
+            if (!fields.contains("CIGAR")) record.setCigarString(SAMRecord.NO_ALIGNMENT_CIGAR);
+            if (!fields.contains("RNEXT")) record.setMateReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+            if (!fields.contains("PNEXT")) record.setMateAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
+            if (!fields.contains("TLEN")) record.setInferredInsertSize(0);
+            if (!fields.contains("SEQ")) record.setReadBases(SAMRecord.NULL_SEQUENCE);
+            if (!fields.contains("QUAL") || !fields.contains("SEQ")) { // No qualities without bases
+                record.setBaseQualities(SAMRecord.NULL_QUALS);
+            }
+        }
+        if (tags != null || notags != null) {
+            for (SAMRecord.SAMTagAndValue attribute:record.getAttributes()) {
+                if ((tags != null && !tags.contains(attribute.tag)) || 
+                        (notags != null && notags.contains(attribute.tag))) {
+                    record.setAttribute(attribute.tag, null);
+                }
+            }
+        }
+        return record;
+    }
+}
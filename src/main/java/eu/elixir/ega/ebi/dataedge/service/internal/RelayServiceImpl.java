@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import eu.elixir.ega.ebi.dataedge.dto.RelayResult;
+import eu.elixir.ega.ebi.dataedge.service.RelayListener;
+import eu.elixir.ega.ebi.dataedge.service.RelayService;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Moves bytes from RES to the client through large pooled buffers. Uses
+ * channel I/O where either end provides it (file streams, or a container
+ * output stream accepting ByteBuffers, e.g. Tomcat 8.5+), and plain
+ * array I/O otherwise. Asynchronous relays are handed to AsyncRelay.
+ *
+ * @author asenf
+ */
+@Service
+public class RelayServiceImpl implements RelayService {
+
+    private static final Logger LOG = Logger.getLogger(RelayServiceImpl.class.getName());
+
+    // write(ByteBuffer) of container output streams, looked up once per class
+    private static final ConcurrentHashMap<Class<?>, Method> BUFFER_WRITERS = new ConcurrentHashMap<>();
+    private static final Method NO_METHOD;
+    static {
+        try {
+            NO_METHOD = Object.class.getMethod("hashCode");
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Autowired
+    private DirectBufferPool relayBufferPool;
+
+    @Autowired
+    @Qualifier("relayExecutor")
+    private ExecutorService relayExecutor;
+
+    @Value("${ega.relay.async.prefetch:2}")
+    private int asyncPrefetch;
+
+    // Checksums are computed on a separate thread (false: inline in the copy loop)
+    @Value("${ega.relay.digest.async:true}")
+    private boolean asyncDigest;
+
+    @Autowired
+    @Qualifier("digestExecutor")
+    private ExecutorService digestExecutor;
+
+    @Override
+    public RelayResult relay(InputStream in,
+                             OutputStream out,
+                             MessageDigest inDigest,
+                             MessageDigest outDigest) throws IOException {
+        return relay(in, out, inDigest, outDigest, null);
+    }
+
+    @Override
+    public RelayResult relay(InputStream in,
+                             OutputStream out,
+                             MessageDigest inDigest,
+                             MessageDigest outDigest,
+                             RelayListener listener) throws IOException {
+        long bytes = 0;
+        long time = System.nanoTime();
+
+        // Digests run behind the copy loop: while buffer i is hashed and sent,
+        // the next one is filled. A buffer is only refilled once it is hashed.
+        DigestStage digests = new DigestStage(inDigest, outDigest, asyncDigest ? digestExecutor : null);
+        int depth = (digests.isEmpty() || !asyncDigest) ? 1 : 2;
+        ByteBuffer[] buffers = new ByteBuffer[depth];
+        List<CompletableFuture<Void>> hashed = new ArrayList<>(Collections.nCopies(depth, null));
+        for (int i=0; i<depth; i++) {
+            buffers[i] = relayBufferPool.acquire();
+        }
+        try {
+            ReadableByteChannel source = sourceChannel(in);
+            Method bufferWriter = bufferWriter(out);
+
+            int read, i = 0;
+            while ((read = fill(in, source, buffers[i])) > 0) {
+                buffers[i].flip();
+                hashed.set(i, digests.update(buffers[i]));
+                drain(out, bufferWriter, buffers[i]);
+                bytes += read;
+                if (listener != null) {
+                    listener.onProgress(bytes);
+                }
+
+                i = (i + 1) % depth;
+                if (hashed.get(i) != null) {
+                    DigestStage.await(hashed.get(i));
+                }
+                buffers[i].clear();
+            }
+            out.flush();
+            DigestStage.await(digests.done());
+        } catch (IOException | RuntimeException ex) {
+            if (listener != null) {
+                listener.onError(ex, new RelayResult(bytes, System.nanoTime() - time));
+            }
+            throw ex;
+        } finally {
+            digests.done().handle((v, t) -> null).join(); // No buffer goes back while it is being hashed
+            for (ByteBuffer buffer:buffers) {
+                relayBufferPool.release(buffer);
+            }
+            time = System.nanoTime() - time;
+        }
+
+        RelayResult result = new RelayResult(bytes, time);
+        LOG.log(Level.INFO, "Relayed {0}", result);
+        if (listener != null) {
+            listener.onComplete(result);
+        }
+        return result;
+    }
+
+    @Override
+    public void relayAsync(InputStream in,
+                           AsyncContext context,
+                           MessageDigest inDigest,
+                           MessageDigest outDigest,
+                           RelayListener listener) throws IOException {
+        new AsyncRelay(in,
+                       context,
+                       relayBufferPool,
+                       relayExecutor,
+                       asyncPrefetch,
+                       new DigestStage(inDigest, outDigest, asyncDigest ? digestExecutor : null),
+                       listener).start();
+    }
+
+    /*
+     * Fill the buffer completely (or until EOF), so that the client side
+     * sees few, large writes. Returns the number of bytes read, -1 at EOF.
+     * The read path is chosen per buffer: the pool may hand out both kinds.
+     */
+    private int fill(InputStream in, ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        if (source == null && !buffer.hasArray()) {
+            source = Channels.newChannel(in); // Direct buffer from a plain stream: copied by the wrapper
+        }
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int r;
+            if (source != null) {
+                r = source.read(buffer);
+            } else {
+                r = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (r > 0) {
+                    buffer.position(buffer.position() + r);
+                }
+            }
+            if (r < 0) {
+                break;
+            }
+            total += r;
+        }
+        return (total == 0) ? -1 : total;
+    }
+
+    private void drain(OutputStream out, Method bufferWriter, ByteBuffer buffer) throws IOException {
+        if (out instanceof FileOutputStream) {
+            WritableByteChannel channel = ((FileOutputStream) out).getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else if (out instanceof WritableByteChannel) {
+            while (buffer.hasRemaining()) {
+                ((WritableByteChannel) out).write(buffer);
+            }
+        } else if (bufferWriter != null) {
+            try {
+                bufferWriter.invoke(out, buffer);
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            } catch (IllegalAccessException ex) {
+                throw new IOException(ex);
+            }
+        } else if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /*
+     * Native channel for the input side; null means a plain stream
+     */
+    private ReadableByteChannel sourceChannel(InputStream in) {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel();
+        } else if (in instanceof ReadableByteChannel) {
+            return (ReadableByteChannel) in;
+        }
+        return null;
+    }
+
+    static Method bufferWriter(OutputStream out) {
+        Method method = BUFFER_WRITERS.get(out.getClass());
+        if (method == null) {
+            try {
+                method = Modifier.isPublic(out.getClass().getModifiers()) ?
+                            out.getClass().getMethod("write", ByteBuffer.class) : NO_METHOD;
+            } catch (NoSuchMethodException | SecurityException ex) {
+                method = NO_METHOD;
+            }
+            BUFFER_WRITERS.putIfAbsent(out.getClass(), method);
+        }
+        return (method == NO_METHOD) ? null : method;
+    }
+}
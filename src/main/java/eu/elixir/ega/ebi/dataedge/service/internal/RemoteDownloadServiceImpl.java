@@ -15,46 +15,55 @@
  */
 package eu.elixir.ega.ebi.dataedge.service.internal;
 
-import com.google.common.io.ByteStreams;
 import com.netflix.hystrix.contrib.javanica.annotation.HystrixCommand;
 import eu.elixir.ega.ebi.dataedge.config.GeneralStreamingException;
 import eu.elixir.ega.ebi.dataedge.config.NotFoundException;
+import eu.elixir.ega.ebi.dataedge.config.RangeNotSatisfiableException;
 import eu.elixir.ega.ebi.dataedge.domain.entity.Transfer;
 import eu.elixir.ega.ebi.dataedge.domain.repository.TransferRepository;
 import eu.elixir.ega.ebi.dataedge.dto.DownloadEntry;
 import eu.elixir.ega.ebi.dataedge.dto.EventEntry;
 import eu.elixir.ega.ebi.dataedge.dto.File;
-import eu.elixir.ega.ebi.dataedge.dto.FileDataset;
 import eu.elixir.ega.ebi.dataedge.dto.HttpResult;
+import eu.elixir.ega.ebi.dataedge.dto.RelayResult;
 import eu.elixir.ega.ebi.dataedge.dto.RequestTicket;
 import org.springframework.stereotype.Service;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.client.RestTemplate;
+import eu.elixir.ega.ebi.dataedge.service.FileAuthorizationService;
 import eu.elixir.ega.ebi.dataedge.service.DownloadService;
 import eu.elixir.ega.ebi.dataedge.service.DownloaderLogService;
+import eu.elixir.ega.ebi.dataedge.service.RelayListener;
+import eu.elixir.ega.ebi.dataedge.service.RelayService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URI;
-import java.security.DigestInputStream;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.GrantedAuthority;
 import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -68,12 +77,17 @@ import org.springframework.web.util.UriComponentsBuilder;
 @EnableDiscoveryClient
 public class RemoteDownloadServiceImpl implements DownloadService {
 
+    private static final Logger LOG = Logger.getLogger(RemoteDownloadServiceImpl.class.getName());
+
     private final String SERVICE_URL = "http://DOWNLOADER";
     private final String RES_URL = "http://RES";
     
     @Autowired
     RestTemplate restTemplate;
 
+    @Autowired
+    private FileAuthorizationService fileAuthorizationService;
+
     // Database Repositories/Services
     
     @Autowired
@@ -82,9 +96,38 @@ public class RemoteDownloadServiceImpl implements DownloadService {
     @Autowired
     private DownloaderLogService downloaderLogService;
     
+    @Autowired
+    private RelayService relayService;
+    
+    // Serve downloads with Servlet 3.1 non-blocking I/O
+    @Value("${ega.download.async:false}")
+    private boolean asyncDownload;
+    
+    // Transfer verification: MD5 (comparable with RES and the archive), SHA-1, SHA-256, CRC32 or CRC32C
+    @Value("${ega.download.checksum:MD5}")
+    private String defaultChecksum;
+    
+    // Bytes between two progress records of a running ticket download
+    @Value("${ega.download.progress.interval:67108864}")
+    private long progressInterval;
+    
+    // Bytes sent but possibly still buffered on the way to the client, not recorded as progress
+    @Value("${ega.download.resume.margin:4194304}")
+    private long resumeMargin;
+    
+    private final TransactionTemplate progressTransaction;
+    
+    @Autowired
+    public RemoteDownloadServiceImpl(PlatformTransactionManager transactionManager) {
+        progressTransaction = new TransactionTemplate(transactionManager);
+        progressTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+    
     @Override
     @HystrixCommand
     public void downloadTicket(String ticket,
+                               boolean resume,
+                               String checksum,
                                HttpServletRequest request,
                                HttpServletResponse response) {
         // Get Ticket Details
@@ -94,12 +137,8 @@ public class RemoteDownloadServiceImpl implements DownloadService {
         }
 
         // No further verification - file is encrypted using previously specified key - only user knows it
-        boolean success = download(ticketObject, response);
-
-        // Finally - if the download was successful, delete the ticket!
-        if (success) {
-            restTemplate.delete(SERVICE_URL + "/request/{user_email}/ticket/{ticket}", ticketObject.getEmail(), ticket);
-        }
+        // If the download was successful, the ticket is deleted
+        download(ticketObject, ticket, resume, getChecksumType(checksum), request, response);
     }
     
     @Override
@@ -109,6 +148,7 @@ public class RemoteDownloadServiceImpl implements DownloadService {
                              String key, 
                              String start, 
                              String end, 
+                             String checksum,
                              HttpServletRequest request, 
                              HttpServletResponse response) {
 
@@ -129,30 +169,74 @@ public class RemoteDownloadServiceImpl implements DownloadService {
                                                            new Timestamp(System.currentTimeMillis()),
                                                            Long.valueOf(start),
                                                            Long.valueOf(end));
-            download(ticketObject, response);
+            download(ticketObject, null, false, getChecksumType(checksum), request, response);
         }
     }
 
     /*
-     * Download Function
+     * Download Function - 'ticket' is deleted once all of its data has been
+     * sent successfully (null: direct download). Plain ticket downloads can be
+     * partial (Range header), or resumed from the recorded progress.
      */
     @HystrixCommand
     private boolean download(RequestTicket ticketObject,
+                             String ticket,
+                             boolean resume,
+                             String checksumType,
+                             HttpServletRequest request,
                              HttpServletResponse response) {
         // Build Header - Specify UUID (Allow later stats query regarding this transfer)
         UUID dlIdentifier = UUID.randomUUID();
         String headerValue = dlIdentifier.toString();
         response = setHeaders(response, headerValue);
 
+        // Partial / resumed ticket download: RES is asked for the remaining coordinates only
+        long offset = 0;
+        boolean toEnd = true;
+        long recorded = 0;
+        RequestTicket resTicket = ticketObject;
+        if (ticket != null && ticketObject.getEncryptionType().equalsIgnoreCase("plain")) {
+            response.setHeader("Accept-Ranges", "bytes");
+            recorded = getRecordedProgress(ticket);
+            HttpRange range = getRange(request, resume, recorded);
+            if (range != null) {
+                long length = getTicketLength(ticketObject);
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                if (start >= length || start > end) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    throw new RangeNotSatisfiableException(request.getHeader("Range"), ticket);
+                }
+                offset = start;
+                toEnd = (end == length - 1);
+                resTicket = getSubTicket(ticketObject, start, end + 1);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                response.setContentLengthLong(end - start + 1);
+            }
+        }
+        final boolean complete = toEnd && offset <= recorded; // Together with earlier transfers: all data sent
+        final ProgressRecorder progress = (ticket == null) ? null : new ProgressRecorder(headerValue, ticket, offset,
+                                                                      Math.max(resumeMargin, response.getBufferSize()));
+
+        // Non-blocking mode: the transfer carries on after this method returns
+        if (asyncDownload && request != null && request.isAsyncSupported()) {
+            downloadAsync(ticketObject, resTicket, ticket, checksumType, headerValue, progress, complete, request);
+            return false;
+        }
+
         // Variables needed for responses at the end of the function
         long timeDelta = 0;
         HttpResult xferResult = null;
         MessageDigest outDigest = null;
+        boolean success = false;
         
         try {
-            // Get Send Stream - http Response, wrap in Digest Stream
-            outDigest = MessageDigest.getInstance("MD5");
-            DigestOutputStream outDigestStream = new DigestOutputStream(response.getOutputStream(), outDigest);
+            // Get Send Stream - http Response, and the Digest of bytes relayed (RES data
+            // is passed on unchanged, so one digest serves for received and sent)
+            outDigest = ChecksumDigest.getInstance(checksumType);
+            final MessageDigest outDigest_ = outDigest;
+            OutputStream outStream = response.getOutputStream();
             
             // Get RES data stream, and copy it to output stream
             RequestCallback requestCallback = request_ -> request_.getHeaders()
@@ -165,22 +249,23 @@ public class RemoteDownloadServiceImpl implements DownloadService {
                 long b = 0;
                 String inHashtext = "";
                 try {
-                    // Input stream from RES, wrap in DigestStream
-                    MessageDigest inDigest = MessageDigest.getInstance("MD5");
-                    DigestInputStream inDigestStream = new DigestInputStream(response_.getBody(), inDigest);
-                    if (inDigestStream == null) {
+                    // Input stream from RES
+                    InputStream inStream = response_.getBody();
+                    if (inStream == null) {
                         throw new GeneralStreamingException("Unable to obtain Input Stream", 2);
                     }
 
-                    // The actual Data Transfer - copy bytes from RES to Http connection to client
-                    b = ByteStreams.copy(inDigestStream, outDigestStream); // in, outputStream
+                    // The actual Data Transfer - relay bytes from RES to Http connection to client
+                    RelayResult relayed = relayService.relay(inStream, outStream, outDigest_, outDigest_, progress);
+                    b = relayed.getBytes();
 
-                    // Done - Close Streams and obtain MD5 of received Stream
-                    inDigestStream.close();
-                    outDigestStream.close();
-                    inHashtext = getDigestText(inDigest.digest());
+                    // Done - Close Streams; MD5 is obtained from the shared digest
+                    inStream.close();
+                    outStream.close();
+                    inHashtext = null;
                 } catch (Throwable t) {
-                    inHashtext = t.getMessage();
+                    b = (progress == null) ? 0 : progress.getConfirmed();
+                    inHashtext = String.valueOf(t.getMessage()); // Never null: null means completed
                 }
                 
                 // return number of bytes copied, RES session header, and MD5 of RES input stream
@@ -190,7 +275,7 @@ public class RemoteDownloadServiceImpl implements DownloadService {
             
             // Build Request URI with Ticket Parameters and get requested file from RES (timed for statistics)
             timeDelta = System.currentTimeMillis();
-            xferResult = restTemplate.execute(getResUri(ticketObject), HttpMethod.GET, requestCallback, responseExtractor);
+            xferResult = restTemplate.execute(getResUri(resTicket), HttpMethod.GET, requestCallback, responseExtractor);
             timeDelta = System.currentTimeMillis() - timeDelta;
             
         } catch (Throwable t) { // Log Error!
@@ -199,42 +284,282 @@ public class RemoteDownloadServiceImpl implements DownloadService {
             
             throw new GeneralStreamingException(t.toString(), 4);
         } finally {
-            Transfer received = getResSession(xferResult.getSession().get(0)); // Shortcut -- Same Database; otherwise perform a REST call to RES
-            System.out.println("Received? " + (received==null?"null":received.toString()));
-
-            // Compare received MD5 with RES
-            String inHashtext = xferResult.getMd5();
-            String outHashtext = getDigestText(outDigest.digest());
-            
-            // Store with UUID for later retrieval - in case of error or success            
-            Transfer transfer = new Transfer(headerValue,
-                                             new java.sql.Timestamp(Calendar.getInstance().getTime().getTime()),
-                                             inHashtext,
-                                             outHashtext,
-                                             0,
-                                             xferResult.getBytes(),
-                                             "DATAEDGE");
-            Transfer save = transferRepository.save(transfer);
-            
-            // Compare - Sent MD5 equals Received MD5? - Log Download in DB
-            boolean success = outHashtext.equals(inHashtext);
-            double speed = (xferResult.getBytes()/1024.0/1024.0)/(timeDelta*1000.0);
-            System.out.println("Success? " + success + ", Speed: " + speed + " MB/s");
-            DownloadEntry dle = getDownloadEntry(success, speed, ticketObject);
-            downloaderLogService.logDownload(dle);
+            if (xferResult != null) {
+                String outHashtext = getDigestText(outDigest.digest());
+                if (xferResult.getMd5() == null) { // Relay completed - received equals sent
+                    xferResult.setMd5(outHashtext);
+                }
+                success = logTransfer(xferResult, outHashtext, timeDelta,
+                                      headerValue, ticketObject, ticket, offset, complete, checksumType);
+            }
+        }
         
-            return success;
+        return success;
+    }
+
+    /*
+     * Servlet 3.1 non-blocking transfer: no container thread is held while the
+     * client drains the data; statistics are logged when the relay has ended
+     */
+    @HystrixCommand
+    private void downloadAsync(RequestTicket ticketObject,
+                               RequestTicket resTicket,
+                               String ticket,
+                               String checksumType,
+                               String headerValue,
+                               ProgressRecorder progress,
+                               boolean complete,
+                               HttpServletRequest request) {
+        try {
+            final MessageDigest digest = ChecksumDigest.getInstance(checksumType); // Received == sent: one digest
+            final long timeStart = System.currentTimeMillis();
+            final long offset = (progress == null) ? 0 : progress.getOffset();
+
+            final ClientHttpResponse resResponse = openResStream(getResUri(resTicket));
+            final List<String> session = resResponse.getHeaders().get("X-Session"); // RES session UUID
+            AsyncContext context = request.startAsync();
+
+            relayService.relayAsync(resResponse.getBody(), context, digest, digest, new RelayListener() {
+                @Override
+                public void onComplete(RelayResult result) {
+                    resResponse.close();
+                    String hashtext = getDigestText(digest.digest());
+                    HttpResult xferResult = new HttpResult(result.getBytes(), session, hashtext);
+                    logTransfer(xferResult, hashtext, System.currentTimeMillis() - timeStart,
+                                headerValue, ticketObject, ticket, offset, complete, checksumType);
+                }
+
+                @Override
+                public void onError(Throwable t, RelayResult result) {
+                    resResponse.close();
+                    if (progress != null) {
+                        progress.onError(t, result);
+                    }
+                    EventEntry eev = getEventEntry(t, ticketObject);
+                    downloaderLogService.logEvent(eev);
+                }
+
+                @Override
+                public void onProgress(long bytes) {
+                    if (progress != null) {
+                        progress.onProgress(bytes);
+                    }
+                }
+            });
+        } catch (Throwable t) { // Log Error!
+            EventEntry eev = getEventEntry(t, ticketObject);
+            downloaderLogService.logEvent(eev);
+
+            throw new GeneralStreamingException(t.toString(), 4);
+        }
+    }
+    
+    /*
+     * Records the bytes sent for a ticket while the transfer is running, and
+     * when it fails - in its own transaction, so a failed request keeps it.
+     * Bytes written are not bytes received: the last 'margin' bytes may still
+     * sit in container and socket buffers, so they are not recorded (a client
+     * resuming with its own Range header is exact)
+     */
+    private class ProgressRecorder implements RelayListener {
+
+        private final String headerValue;
+        private final String ticket;
+        private final long offset;
+        private final long margin;
+        private volatile long sent = 0;
+        private long saved = 0;
+
+        ProgressRecorder(String headerValue, String ticket, long offset, long margin) {
+            this.headerValue = headerValue;
+            this.ticket = ticket;
+            this.offset = offset;
+            this.margin = margin;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        // Bytes the client has most likely received
+        long getConfirmed() {
+            return Math.max(0, sent - margin);
+        }
+
+        @Override
+        public void onProgress(long bytes) {
+            sent = bytes;
+            if (bytes - saved >= progressInterval) {
+                saved = bytes;
+                saveProgress(headerValue, ticket, offset, getConfirmed());
+            }
+        }
+
+        @Override
+        public void onComplete(RelayResult result) {
+            sent = result.getBytes(); // Final state is stored by logTransfer()
+        }
+
+        @Override
+        public void onError(Throwable t, RelayResult result) {
+            sent = result.getBytes();
+            saveProgress(headerValue, ticket, offset, getConfirmed());
         }
     }
     
     /*
      * Helper Functions
      */
+    @HystrixCommand
+    private boolean logTransfer(HttpResult xferResult,
+                                String outHashtext,
+                                long timeDelta,
+                                String headerValue,
+                                RequestTicket ticketObject,
+                                String ticket,
+                                long offset,
+                                boolean complete,
+                                String checksumType) {
+        Transfer received = getResSession(xferResult.getSession().get(0)); // Shortcut -- Same Database; otherwise perform a REST call to RES
+        System.out.println("Received? " + (received==null?"null":received.toString()));
+
+        // Compare received MD5 with RES
+        String inHashtext = xferResult.getMd5();
+
+        // Store with UUID for later retrieval - in case of error or success            
+        Transfer transfer = new Transfer(headerValue,
+                                         new java.sql.Timestamp(Calendar.getInstance().getTime().getTime()),
+                                         inHashtext,
+                                         outHashtext,
+                                         0,
+                                         xferResult.getBytes(),
+                                         "DATAEDGE",
+                                         ticket,
+                                         offset,
+                                         checksumType);
+        Transfer save = transferRepository.save(transfer);
+
+        // Compare - Sent MD5 equals Received MD5? - Log Download in DB
+        boolean success = outHashtext.equals(inHashtext);
+        double speed = (xferResult.getBytes()/1024.0/1024.0)/(Math.max(timeDelta, 1)/1000.0);
+        System.out.println("Success? " + success + ", Speed: " + speed + " MB/s");
+        DownloadEntry dle = getDownloadEntry(success, speed, ticketObject);
+        downloaderLogService.logDownload(dle);
+
+        // Finally - if all data of the ticket was sent successfully, delete the ticket!
+        if (success && complete && ticket != null) {
+            restTemplate.delete(SERVICE_URL + "/request/{user_email}/ticket/{ticket}", ticketObject.getEmail(), ticket);
+        }
+        
+        return success;
+    }
+    
+    @HystrixCommand
+    private void saveProgress(String headerValue, String ticket, long offset, long sent) {
+        try {
+            progressTransaction.execute(status -> transferRepository.save(new Transfer(headerValue,
+                                         new java.sql.Timestamp(Calendar.getInstance().getTime().getTime()),
+                                         null,
+                                         null,
+                                         0,
+                                         sent,
+                                         "DATAEDGE",
+                                         ticket,
+                                         offset,
+                                         null)));
+        } catch (Throwable t) { // Progress is advisory - never fail a transfer because of it
+            LOG.log(Level.WARNING, "Progress not saved for ticket " + ticket, t);
+        }
+    }
+    
+    // Contiguous bytes of a ticket's data sent by earlier transfers (rows by start offset)
+    @HystrixCommand
+    private long getRecordedProgress(String ticket) {
+        long recorded = 0;
+        List<Transfer> transfers = transferRepository.findByDownloadTicketOrderByStartOffsetAsc(ticket);
+        if (transfers != null) {
+            for (Transfer transfer:transfers) {
+                if (transfer.getStartOffset() <= recorded) {
+                    recorded = Math.max(recorded, transfer.getStartOffset() + transfer.getSent());
+                }
+            }
+        }
+        return recorded;
+    }
+    
+    // Requested range: Range header (single range), or resume=true from the recorded progress
+    @HystrixCommand
+    private HttpRange getRange(HttpServletRequest request, boolean resume, long recorded) {
+        String rangeHeader = (request==null) ? null : request.getHeader("Range");
+        if (rangeHeader != null && rangeHeader.length() > 0) {
+            List<HttpRange> ranges = null;
+            try {
+                ranges = HttpRange.parseRanges(rangeHeader);
+            } catch (IllegalArgumentException ex) {}
+            if (ranges == null || ranges.size() != 1) {
+                throw new RangeNotSatisfiableException(rangeHeader, "only a single range is supported");
+            }
+            return ranges.get(0);
+        } else if (resume && recorded > 0) {
+            return HttpRange.createByteRange(recorded);
+        }
+        return null;
+    }
+    
+    // Number of bytes covered by a ticket
+    @HystrixCommand
+    private long getTicketLength(RequestTicket ticketObject) {
+        if (ticketObject.getEndCoordinate() > 0) {
+            return ticketObject.getEndCoordinate() - ticketObject.getStartCoordinate();
+        }
+        ResponseEntity<Long> forSize = restTemplate.getForEntity(RES_URL + "/file/archive/{file_id}/size", Long.class, ticketObject.getFileId());
+        return forSize.getBody() - ticketObject.getStartCoordinate();
+    }
+    
+    // Same ticket, restricted to [start, end) relative to the ticket's data
+    @HystrixCommand
+    private RequestTicket getSubTicket(RequestTicket ticketObject, long start, long end) {
+        return new RequestTicket(ticketObject.getEmail(),
+                                 ticketObject.getDownloadTicket(),
+                                 ticketObject.getClientIp(),
+                                 ticketObject.getFileId(),
+                                 ticketObject.getEncryptionKey(),
+                                 ticketObject.getEncryptionType(),
+                                 ticketObject.getTicketStatus(),
+                                 ticketObject.getLabel(),
+                                 ticketObject.getCreated(),
+                                 ticketObject.getStartCoordinate() + start,
+                                 ticketObject.getStartCoordinate() + end);
+    }
+    
+    // Open a RES data stream that outlives the calling method (for async transfers)
+    @HystrixCommand
+    private ClientHttpResponse openResStream(URI resUri) throws IOException {
+        ClientHttpRequest resRequest = restTemplate.getRequestFactory().createRequest(resUri, HttpMethod.GET);
+        resRequest.getHeaders().setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM, MediaType.ALL));
+        ClientHttpResponse resResponse = resRequest.execute();
+        if (restTemplate.getErrorHandler().hasError(resResponse)) {
+            try {
+                restTemplate.getErrorHandler().handleError(resResponse);
+            } finally {
+                resResponse.close();
+            }
+        }
+        return resResponse;
+    }
+    
+    // Configured checksum algorithm, unless the request asks for a specific one
+    @HystrixCommand
+    private String getChecksumType(String checksum) {
+        String checksumType = (checksum == null || checksum.trim().length() == 0) ? defaultChecksum : checksum;
+        return ChecksumDigest.getInstance(checksumType).getAlgorithm(); // Validates the name
+    }
+    
     @HystrixCommand
     private String getDigestText(byte[] inDigest) {
         BigInteger bigIntIn = new BigInteger(1,inDigest);
         String hashtext = bigIntIn.toString(16);
-        while(hashtext.length() < 32 ){
+        while(hashtext.length() < inDigest.length*2 ){
             hashtext = "0"+hashtext;
         }                    
         return hashtext;
@@ -308,34 +633,9 @@ public class RemoteDownloadServiceImpl implements DownloadService {
     }
 
     @HystrixCommand
-    @Cacheable(cacheNames="reqFile")
     private File getReqFile(String file_id, Authentication auth) {
-        ResponseEntity<FileDataset[]> forEntityDataset = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}/datasets", FileDataset[].class, file_id);
-        FileDataset[] bodyDataset = forEntityDataset.getBody();
-
-        // Obtain all Authorised Datasets
-        HashSet<String> permissions = new HashSet<>();
-        Collection<? extends GrantedAuthority> authorities = auth.getAuthorities();
-        Iterator<? extends GrantedAuthority> iterator = authorities.iterator();
-        while (iterator.hasNext()) {
-            GrantedAuthority next = iterator.next();
-            permissions.add(next.getAuthority());
-        }
-        
         // Is this File in at least one Authoised Dataset?
-        ResponseEntity<File[]> forEntity = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}", File[].class, file_id);
-        File[] body = forEntity.getBody();
-        if (body!=null && bodyDataset!=null) {
-            for (FileDataset f:bodyDataset) {
-                String dataset_id = f.getDatasetId();
-                if (permissions.contains(dataset_id) && body.length>=1) {
-                    File ff = body[0];
-                    ff.setDatasetId(dataset_id);
-                    return ff;
-                }
-            }
-        }
-        
-        return (new File());
+        File reqFile = fileAuthorizationService.getFile(auth, file_id, null);
+        return (reqFile != null) ? reqFile : (new File());
     }
 }
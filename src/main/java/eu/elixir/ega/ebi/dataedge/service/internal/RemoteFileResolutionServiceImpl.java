@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import eu.elixir.ega.ebi.dataedge.config.InternalErrorException;
+import eu.elixir.ega.ebi.dataedge.config.NotFoundException;
+import eu.elixir.ega.ebi.dataedge.dto.File;
+import eu.elixir.ega.ebi.dataedge.dto.FileDataset;
+import eu.elixir.ega.ebi.dataedge.dto.FileIndexFile;
+import eu.elixir.ega.ebi.dataedge.service.FileResolutionService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Lookups go through the load-balanced AsyncRestTemplate, so a caller that
+ * needs both the file and its datasets waits for the slower of the two
+ * rather than for their sum. The RES size lookup is only needed for files
+ * without a size in the database, so by default it follows the file lookup.
+ * It can be started speculatively with the file lookup instead (cancelled
+ * if the size turns out to be known - which does not stop the work on RES,
+ * so this adds a RES request to every metadata miss).
+ *
+ * @author asenf
+ */
+@Service
+@EnableDiscoveryClient
+public class RemoteFileResolutionServiceImpl implements FileResolutionService {
+
+    private final String SERVICE_URL = "http://DOWNLOADER";
+    private final String RES_URL = "http://RES";
+    
+    @Autowired
+    private AsyncRestTemplate asyncRestTemplate;
+    
+    @Value("${ega.resolve.speculative.size:false}")
+    private boolean speculativeSize;
+
+    @Override
+    public CompletableFuture<File> getFile(String fileId) {
+        CompletableFuture<File[]> forFile = 
+                toFuture(asyncRestTemplate.getForEntity(SERVICE_URL + "/file/{file_id}", File[].class, fileId));
+        CompletableFuture<Long> forSize = speculativeSize ? getSize(fileId) : null;
+        
+        return forFile.thenCompose(body -> {
+            if (body == null || body.length == 0) { // 404 File Not Found
+                cancel(forSize);
+                throw new NotFoundException(fileId, "4");
+            }
+            File reqFile = body[0];
+            if (reqFile.getFileSize() != 0) {
+                cancel(forSize);
+                return CompletableFuture.completedFuture(reqFile);
+            }
+            
+            // If there's no file size in the database, obtain it from RES
+            return ((forSize != null) ? forSize : getSize(fileId)).thenApply(size -> {
+                reqFile.setFileSize(size);
+                return reqFile;
+            });
+        }).whenComplete((file, t) -> {
+            if (t != null) {
+                cancel(forSize);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<FileDataset[]> getDatasets(String fileId) {
+        return toFuture(asyncRestTemplate.getForEntity(SERVICE_URL + "/file/{file_id}/datasets", FileDataset[].class, fileId))
+                .thenApply(body -> {
+                    if (body == null) { // 404 File Not Found
+                        throw new NotFoundException(fileId, "4");
+                    }
+                    return body;
+                });
+    }
+    
+    @Override
+    public CompletableFuture<FileIndexFile> getIndexFile(String fileId) {
+        return toFuture(asyncRestTemplate.getForEntity(SERVICE_URL + "/file/{file_id}/index", FileIndexFile[].class, fileId))
+                .thenApply(body -> (body != null && body.length >= 1) ? body[0] : null);
+    }
+
+    @Override
+    public CompletableFuture<File[]> getDatasetFiles(String datasetId) {
+        return toFuture(asyncRestTemplate.getForEntity(SERVICE_URL + "/datasets/{dataset_id}/files", File[].class, datasetId))
+                .thenApply(body -> {
+                    if (body == null) { // 404 Dataset Not Found
+                        throw new NotFoundException(datasetId, "4");
+                    }
+                    return body;
+                });
+    }
+    
+    private CompletableFuture<Long> getSize(String fileId) {
+        return toFuture(asyncRestTemplate.getForEntity(RES_URL + "/file/archive/{file_id}/size", Long.class, fileId));
+    }
+    
+    /*
+     * Result of a lookup, waiting at most 'timeout' ms; failures are thrown
+     * as NotFoundException (404 from the remote service) or as unchecked
+     * exceptions
+     */
+    static <T> T await(Future<T> future, String fileId, long timeout) {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted: " + fileId, "4");
+        } catch (TimeoutException ex) {
+            throw new InternalErrorException("Timeout: " + fileId, "4");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof HttpClientErrorException &&
+                    ((HttpClientErrorException) cause).getStatusCode() == HttpStatus.NOT_FOUND) {
+                throw new NotFoundException(fileId, "4");
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new InternalErrorException(String.valueOf(cause), "4");
+        }
+    }
+    
+    private static void cancel(Future<?> future) {
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+    
+    // Body of the response; cancelling the result cancels the request
+    private static <T> CompletableFuture<T> toFuture(ListenableFuture<ResponseEntity<T>> request) {
+        CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                request.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        request.addCallback(new ListenableFutureCallback<ResponseEntity<T>>() {
+            @Override
+            public void onSuccess(ResponseEntity<T> result) {
+                future.complete(result.getBody());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+}
@@ -15,7 +15,6 @@
  */
 package eu.elixir.ega.ebi.dataedge.service.internal;
 
-import com.google.common.io.ByteStreams;
 import com.netflix.appinfo.InstanceInfo;
 import com.netflix.discovery.EurekaClient;
 import com.netflix.hystrix.contrib.javanica.annotation.HystrixCommand;
@@ -23,70 +22,82 @@ import eu.elixir.ega.ebi.dataedge.config.GeneralStreamingException;
 import eu.elixir.ega.ebi.dataedge.config.InternalErrorException;
 import eu.elixir.ega.ebi.dataedge.config.NotFoundException;
 import eu.elixir.ega.ebi.dataedge.config.PermissionDeniedException;
-import eu.elixir.ega.ebi.dataedge.config.VerifyMessage;
+import eu.elixir.ega.ebi.dataedge.config.RangeNotSatisfiableException;
 import eu.elixir.ega.ebi.dataedge.domain.entity.Transfer;
 import eu.elixir.ega.ebi.dataedge.domain.repository.TransferRepository;
 import eu.elixir.ega.ebi.dataedge.dto.DownloadEntry;
 import eu.elixir.ega.ebi.dataedge.dto.EventEntry;
 import eu.elixir.ega.ebi.dataedge.dto.File;
-import eu.elixir.ega.ebi.dataedge.dto.FileDataset;
 import eu.elixir.ega.ebi.dataedge.dto.FileIndexFile;
+import eu.elixir.ega.ebi.dataedge.dto.FileManifest;
 import eu.elixir.ega.ebi.dataedge.dto.HttpResult;
+import eu.elixir.ega.ebi.dataedge.dto.RelayResult;
+import eu.elixir.ega.ebi.dataedge.dto.Region;
 import eu.elixir.ega.ebi.dataedge.dto.MyExternalConfig;
+import eu.elixir.ega.ebi.dataedge.service.FileAuthorizationService;
 import eu.elixir.ega.ebi.dataedge.service.DownloaderLogService;
+import eu.elixir.ega.ebi.dataedge.service.RelayListener;
+import eu.elixir.ega.ebi.dataedge.service.RelayService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.client.RestTemplate;
 import eu.elixir.ega.ebi.dataedge.service.FileService;
-import eu.elixir.ega.ebi.egacipher.EgaSeekableCachedResStream;
+import eu.elixir.ega.ebi.dataedge.service.HeaderService;
+import eu.elixir.ega.ebi.dataedge.service.IndexService;
 import eu.elixir.ega.ebi.egacipher.EgaSeekableResStream;
 import htsjdk.samtools.CRAMFileWriter;
+import htsjdk.samtools.BAMRecordCodec;
 import htsjdk.samtools.DefaultSAMRecordFactory;
 import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.SamReaderFactory.Option;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.cram.ref.CRAMReferenceSource;
-import htsjdk.samtools.cram.ref.ReferenceSource;
 import htsjdk.samtools.seekablestream.SeekableBufferedStream;
+import htsjdk.samtools.seekablestream.ByteArraySeekableStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.security.DigestInputStream;
-import java.security.DigestOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.GrantedAuthority;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResponseExtractor;
@@ -107,6 +118,9 @@ public class RemoteFileServiceImpl implements FileService {
     @Autowired
     RestTemplate restTemplate;
 
+    @Autowired
+    private FileAuthorizationService fileAuthorizationService;
+
     // Database Repositories/Services
     
     @Autowired
@@ -115,12 +129,100 @@ public class RemoteFileServiceImpl implements FileService {
     @Autowired
     private DownloaderLogService downloaderLogService;
     
+    @Autowired
+    private RelayService relayService;
+    
     @Autowired
     private EurekaClient discoveryClient;
 
     @Autowired
     MyExternalConfig externalConfig;
     
+    @Autowired
+    private ArchiveStreamFactory archiveStreamFactory;
+    
+    @Autowired
+    private HeaderService headerService;
+    
+    @Autowired
+    private IndexService indexService;
+    
+    @Autowired
+    private BgzfStreamFactory bgzfStreamFactory;
+    
+    @Autowired
+    private MappedReferenceSource cramReferenceSource;
+    
+    @Autowired
+    @Qualifier("cramExecutor")
+    private ExecutorService cramExecutor;
+    
+    @Autowired
+    @Qualifier("deflateExecutor")
+    private ExecutorService deflateExecutor;
+    
+    // CRAM regions: decoded in pieces of this many bases, encoded in batches of records
+    @Value("${ega.cram.parallel:true}")
+    private boolean cramParallel;
+    
+    @Value("${ega.cram.piece.length:1000000}")
+    private int cramPieceLength;
+    
+    @Value("${ega.cram.window:8}")
+    private int cramWindow;
+    
+    @Value("${ega.cram.depth:10000}")
+    private int cramDepth;
+    
+    @Value("${ega.cram.batch.size:50000}")
+    private int cramBatchSize;
+    
+    @Value("${ega.cram.batches:4}")
+    private int cramBatches;
+    
+    // BAM-to-BAM region slices copy whole BGZF blocks instead of re-encoding
+    @Value("${ega.slice.passthrough:true}")
+    private boolean slicePassthrough;
+    
+    // Serve downloads with Servlet 3.1 non-blocking I/O
+    @Value("${ega.download.async:false}")
+    private boolean asyncDownload;
+    
+    // Transfer verification: MD5 (comparable with RES and the archive), SHA-1, SHA-256, CRC32 or CRC32C
+    @Value("${ega.download.checksum:MD5}")
+    private String defaultChecksum;
+    
+    // Large plain downloads: fetch several coordinate segments from RES at once
+    @Value("${ega.download.parallel.enabled:false}")
+    private boolean parallelDownload;
+
+    @Value("${ega.download.parallel.threshold:268435456}")
+    private long parallelThreshold;
+
+    @Value("${ega.download.parallel.segments:4}")
+    private int parallelSegments;
+
+    @Value("${ega.download.parallel.segment.size:67108864}")
+    private long parallelSegmentSize;
+
+    @Value("${ega.download.parallel.depth:8}")
+    private int parallelDepth;
+
+    @Autowired
+    @Qualifier("segmentExecutor")
+    private ExecutorService segmentExecutor;
+
+    @Autowired
+    private DirectBufferPool relayBufferPool;
+
+    // Prefetch with index=true: indexes loaded this many at a time per request
+    @Value("${ega.prefetch.index.parallel:8}")
+    private int prefetchIndexParallel;
+
+    @Autowired
+    @Qualifier("prefetchExecutor")
+    private ExecutorService prefetchExecutor;
+    
     @Override
     @HystrixCommand
     public void getFile(Authentication auth, 
@@ -129,11 +231,13 @@ public class RemoteFileServiceImpl implements FileService {
                         String destinationKey,
                         long startCoordinate,
                         long endCoordinate,
+                        String checksum,
                         HttpServletRequest request,
                         HttpServletResponse response) {
 
         // Ascertain Access Permissions for specified File ID
         File reqFile = getReqFile(file_id, auth, request); // request added for ELIXIR
+        String checksumType = getChecksumType(checksum); // Transfer verification
 
         // Build Header - Specify UUID (Allow later stats query regarding this transfer)
         UUID dlIdentifier = UUID.randomUUID();
@@ -148,10 +252,40 @@ public class RemoteFileServiceImpl implements FileService {
         if (reqFile != null) {
             String user_email = auth.getName(); // For Logging
 
+            // HTTP Range requests (plain data only) are translated into RES coordinates
+            List<HttpRange> ranges = getRanges(reqFile, destinationFormat, startCoordinate, endCoordinate, request, response);
+            if (ranges.size() > 1) {
+                getFileRanges(ranges, reqFile.getFileSize(), file_id, destinationFormat, checksumType, user_email, headerValue, response);
+                return;
+            } else if (ranges.size() == 1) {
+                long fileSize = reqFile.getFileSize();
+                startCoordinate = ranges.get(0).getRangeStart(fileSize);
+                endCoordinate = ranges.get(0).getRangeEnd(fileSize) + 1; // RES end coordinate is exclusive
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + startCoordinate + "-" + (endCoordinate-1) + "/" + fileSize);
+                response.setContentLengthLong(endCoordinate - startCoordinate);
+            }
+
+            // Whole plain file above the threshold: parallel segmented fetch from RES
+            if (parallelDownload && ranges.isEmpty() && startCoordinate == 0 && endCoordinate == 0 &&
+                    destinationFormat.equalsIgnoreCase("plain") && reqFile.getFileSize() >= parallelThreshold) {
+                getFileParallel(reqFile.getFileSize(), file_id, destinationFormat, checksumType, user_email, headerValue, request, response);
+                return;
+            }
+
+            // Non-blocking mode: the transfer carries on after this method returns
+            if (asyncDownload && request != null && request.isAsyncSupported()) {
+                getFileAsync(getResUri(file_id,destinationFormat,destinationKey,startCoordinate,endCoordinate),
+                             file_id, destinationFormat, checksumType, user_email, headerValue, request);
+                return;
+            }
+
             try {
-                // Get Send Stream - http Response, wrap in Digest Stream
-                outDigest = MessageDigest.getInstance("MD5");
-                DigestOutputStream outDigestStream = new DigestOutputStream(response.getOutputStream(), outDigest);
+                // Get Send Stream - http Response, and the Digest of bytes relayed (RES data
+                // is passed on unchanged, so one digest serves for received and sent)
+                outDigest = ChecksumDigest.getInstance(checksumType);
+                final MessageDigest outDigest_ = outDigest;
+                OutputStream outStream = response.getOutputStream();
 
                 // Get RES data stream, and copy it to output stream
                 RequestCallback requestCallback = request_ -> request_.getHeaders()
@@ -164,22 +298,22 @@ public class RemoteFileServiceImpl implements FileService {
                     long b = 0;
                     String inHashtext = "";
                     try {
-                        // Input stream from RES, wrap in DigestStream
-                        MessageDigest inDigest = MessageDigest.getInstance("MD5");
-                        DigestInputStream inDigestStream = new DigestInputStream(response_.getBody(), inDigest);
-                        if (inDigestStream == null) {
+                        // Input stream from RES
+                        InputStream inStream = response_.getBody();
+                        if (inStream == null) {
                             throw new GeneralStreamingException("Unable to obtain Input Stream", 2);
                         }
 
-                        // The actual Data Transfer - copy bytes from RES to Http connection to client
-                        b = ByteStreams.copy(inDigestStream, outDigestStream); // in, outputStream
+                        // The actual Data Transfer - relay bytes from RES to Http connection to client
+                        RelayResult relayed = relayService.relay(inStream, outStream, outDigest_, outDigest_);
+                        b = relayed.getBytes();
 
-                        // Done - Close Streams and obtain MD5 of received Stream
-                        inDigestStream.close();
-                        outDigestStream.close();
-                        inHashtext = getDigestText(inDigest.digest());
+                        // Done - Close Streams; MD5 is obtained from the shared digest
+                        inStream.close();
+                        outStream.close();
+                        inHashtext = null;
                     } catch (Throwable t) {
-                        inHashtext = t.getMessage();
+                        inHashtext = String.valueOf(t.getMessage()); // Never null: null means completed
                     }
 
                     // return number of bytes copied, RES session header, and MD5 of RES input stream
@@ -205,41 +339,208 @@ public class RemoteFileServiceImpl implements FileService {
                 throw new GeneralStreamingException(t.toString(), 4);
             } finally {
                 if (xferResult != null) {
-                    Transfer received = getResSession(xferResult.getSession().get(0)); // Shortcut -- Same Database; otherwise perform a REST call to RES
-                    System.out.println("Received? " + (received==null?"null":received.toString()));
-
-                    // Compare received MD5 with RES
-                    String inHashtext = xferResult.getMd5();
                     String outHashtext = getDigestText(outDigest.digest());
+                    if (xferResult.getMd5() == null) { // Relay completed - received equals sent
+                        xferResult.setMd5(outHashtext);
+                    }
+                    logTransfer(xferResult, outHashtext, timeDelta,
+                                headerValue, file_id, user_email, destinationFormat, checksumType);
+                }
+            }
+        }
+    }
 
-                    // Store with UUID for later retrieval - in case of error or success            
-                    Transfer transfer = new Transfer(headerValue,
-                                                     new java.sql.Timestamp(Calendar.getInstance().getTime().getTime()),
-                                                     inHashtext,
-                                                     outHashtext,
-                                                     0,
-                                                     xferResult.getBytes(),
-                                                     "DATAEDGE");
-                    Transfer save = transferRepository.save(transfer);
-
-                    // Compare - Sent MD5 equals Received MD5? - Log Download in DB
-                    boolean success = outHashtext.equals(inHashtext);
-                    double speed = (xferResult.getBytes()/1024.0/1024.0)/(timeDelta*1000.0);
-                    System.out.println("Success? " + success + ", Speed: " + speed + " MB/s");
-                    DownloadEntry dle = getDownloadEntry(success, speed, file_id, "TODO ClientIp", user_email, destinationFormat);
-                    downloaderLogService.logDownload(dle);                
+    /*
+     * Servlet 3.1 non-blocking transfer: no container thread is held while the
+     * client drains the data; statistics are logged when the relay has ended
+     */
+    @HystrixCommand
+    private void getFileAsync(URI resUri,
+                              String file_id,
+                              String destinationFormat,
+                              String checksumType,
+                              String user_email,
+                              String headerValue,
+                              HttpServletRequest request) {
+        try {
+            final MessageDigest digest = ChecksumDigest.getInstance(checksumType); // Received == sent: one digest
+            final long timeStart = System.currentTimeMillis();
+
+            final ClientHttpResponse resResponse = openResStream(resUri);
+            final List<String> session = resResponse.getHeaders().get("X-Session"); // RES session UUID
+            AsyncContext context = request.startAsync();
+
+            relayService.relayAsync(resResponse.getBody(), context, digest, digest, new RelayListener() {
+                @Override
+                public void onComplete(RelayResult result) {
+                    resResponse.close();
+                    String hashtext = getDigestText(digest.digest());
+                    HttpResult xferResult = new HttpResult(result.getBytes(), session, hashtext);
+                    logTransfer(xferResult, hashtext, System.currentTimeMillis() - timeStart,
+                                headerValue, file_id, user_email, destinationFormat, checksumType);
+                }
+
+                @Override
+                public void onError(Throwable t, RelayResult result) {
+                    resResponse.close();
+                    EventEntry eev = getEventEntry(t, "TODO ClientIp", "Direct Download", user_email);
+                    downloaderLogService.logEvent(eev);
+                }
+            });
+        } catch (Throwable t) { // Log Error!
+            EventEntry eev = getEventEntry(t, "TODO ClientIp", "Direct Download", user_email);
+            downloaderLogService.logEvent(eev);
+
+            throw new GeneralStreamingException(t.toString(), 4);
+        }
+    }
+
+    /*
+     * The file is fetched from RES as several concurrent coordinate segments,
+     * each a separate (load balanced) request, and reassembled in order
+     */
+    @HystrixCommand
+    private void getFileParallel(long fileSize,
+                                 String file_id,
+                                 String destinationFormat,
+                                 String checksumType,
+                                 String user_email,
+                                 String headerValue,
+                                 HttpServletRequest request,
+                                 HttpServletResponse response) {
+        final List<String> session = new CopyOnWriteArrayList<>(); // RES session of the first segment
+        SegmentedResStream.SegmentOpener opener = (start, end) -> {
+            ClientHttpResponse resResponse = openResStream(getResUri(file_id,destinationFormat,"",start,end));
+            List<String> resSession = resResponse.getHeaders().get("X-Session");
+            if (start == 0 && resSession != null) {
+                session.addAll(resSession);
+            }
+            return new FilterInputStream(resResponse.getBody()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        resResponse.close();
+                    }
                 }
+            };
+        };
+        
+        long timeDelta = System.currentTimeMillis();
+        SegmentedResStream inStream = null;
+        try {
+            final MessageDigest digest = ChecksumDigest.getInstance(checksumType); // Received == sent: one digest
+            inStream = new SegmentedResStream(opener, segmentExecutor, relayBufferPool, fileSize,
+                                              parallelSegmentSize, parallelSegments, parallelDepth);
+            response.setContentLengthLong(fileSize);
+
+            // Non-blocking mode: statistics are logged once the relay has ended
+            if (asyncDownload && request != null && request.isAsyncSupported()) {
+                final long timeStart = timeDelta;
+                AsyncContext context = request.startAsync();
+                relayService.relayAsync(inStream, context, digest, digest, new RelayListener() {
+                    @Override
+                    public void onComplete(RelayResult result) {
+                        String hashtext = getDigestText(digest.digest());
+                        HttpResult xferResult = new HttpResult(result.getBytes(), session, hashtext);
+                        logTransfer(xferResult, hashtext, System.currentTimeMillis() - timeStart,
+                                    headerValue, file_id, user_email, destinationFormat, checksumType);
+                    }
+
+                    @Override
+                    public void onError(Throwable t, RelayResult result) {
+                        EventEntry eev = getEventEntry(t, "TODO ClientIp", "Direct Download", user_email);
+                        downloaderLogService.logEvent(eev);
+                    }
+                });
+                return;
             }
+
+            OutputStream outStream = response.getOutputStream();
+            RelayResult relayed = relayService.relay(inStream, outStream, digest, digest);
+            inStream.close();
+            outStream.close();
+            timeDelta = System.currentTimeMillis() - timeDelta;
+
+            String hashtext = getDigestText(digest.digest());
+            HttpResult xferResult = new HttpResult(relayed.getBytes(), session, hashtext);
+            logTransfer(xferResult, hashtext, timeDelta,
+                        headerValue, file_id, user_email, destinationFormat, checksumType);
+        } catch (Throwable t) { // Log Error!
+            if (inStream != null) try {inStream.close();} catch (IOException ex) {;}
+            EventEntry eev = getEventEntry(t, "TODO ClientIp", "Direct Download", user_email);
+            downloaderLogService.logEvent(eev);
+
+            throw new GeneralStreamingException(t.toString(), 4);
         }
     }
 
+    /*
+     * Multiple byte ranges: one RES request per range, sent as multipart/byteranges
+     */
+    @HystrixCommand
+    private void getFileRanges(List<HttpRange> ranges,
+                               long fileSize,
+                               String file_id,
+                               String destinationFormat,
+                               String checksumType,
+                               String user_email,
+                               String headerValue,
+                               HttpServletResponse response) {
+        String boundary = UUID.randomUUID().toString();
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+
+        long timeDelta = System.currentTimeMillis();
+        long bytes = 0;
+        List<String> session = null;
+        MessageDigest digest = null;
+        try {
+            // Digest only covers the file data - not the part headers (received == sent: one digest)
+            digest = ChecksumDigest.getInstance(checksumType);
+            OutputStream outStream = response.getOutputStream();
+
+            for (HttpRange range:ranges) {
+                long start = range.getRangeStart(fileSize);
+                long end = range.getRangeEnd(fileSize);
+                String partHeader = "\r\n--" + boundary + "\r\n" +
+                                    "Content-Type: application/octet-stream\r\n" +
+                                    "Content-Range: bytes " + start + "-" + end + "/" + fileSize + "\r\n\r\n";
+                outStream.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+
+                ClientHttpResponse resResponse = openResStream(getResUri(file_id,destinationFormat,"",start,end+1));
+                try {
+                    if (session == null) {
+                        session = resResponse.getHeaders().get("X-Session"); // RES session UUID
+                    }
+                    bytes += relayService.relay(resResponse.getBody(), outStream, digest, digest).getBytes();
+                } finally {
+                    resResponse.close();
+                }
+            }
+            outStream.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            outStream.close();
+            timeDelta = System.currentTimeMillis() - timeDelta;
+        } catch (Throwable t) { // Log Error!
+            EventEntry eev = getEventEntry(t, "TODO ClientIp", "Direct Download", user_email);
+            downloaderLogService.logEvent(eev);
+
+            throw new GeneralStreamingException(t.toString(), 4);
+        }
+
+        String hashtext = getDigestText(digest.digest());
+        HttpResult xferResult = new HttpResult(bytes, session, hashtext);
+        logTransfer(xferResult, hashtext, timeDelta,
+                    headerValue, file_id, user_email, destinationFormat, checksumType);
+    }
+
     /*
      * GA4GH / Semantic Functionality: Use SAMTools to access a File in Cleversafe
      */
     
     @Override
     @HystrixCommand
-    @Cacheable(cacheNames="headerFile")
     public Object getFileHeader(Authentication auth, 
                                 String file_id, 
                                 String destinationFormat, 
@@ -249,21 +550,13 @@ public class RemoteFileServiceImpl implements FileService {
         // Ascertain Access Permissions for specified File ID
         File reqFile = getReqFile(file_id, auth, null);
         if (reqFile!=null) {
-            URL resUrl = null;
             try {
-                resUrl = new URL(resUrl() + "/file/archive/" + reqFile.getFileId()); // Just specify file ID
+                URL resUrl = new URL(resUrl() + "file/archive/" + reqFile.getFileId()); // Just specify file ID
                 
-                SeekableStream cIn = new EgaSeekableResStream(resUrl); // Deals with coordinates
-                //SeekableStream cIn = new EgaSeekableCachedResStream(resUrl); // Deals with coordinates
-
-                // SamReader with input stream based on RES URL
-                SamReader reader = 
-                    SamReaderFactory.make() 
-                      .validationStringency(ValidationStringency.LENIENT) 
-                      .samRecordFactory(DefaultSAMRecordFactory.getInstance()) 
-                      .open(SamInputResource.of(cIn));  
-                header = reader.getFileHeader();
-                reader.close();
+                // Shared by all users of the file - only the permission check above is per user
+                byte[] encoded = headerService.getHeader(reqFile.getFileId(), resUrl, reqFile.getFileSize(),
+                                                         getExtension(reqFile));
+                header = HeaderServiceImpl.decode(encoded, reqFile.getFileId());
             } catch (MalformedURLException ex) {
                 Logger.getLogger(RemoteFileServiceImpl.class.getName()).log(Level.SEVERE, null, ex);
             } catch (IOException ex) {
@@ -330,9 +623,10 @@ public class RemoteFileServiceImpl implements FileService {
                         String idType,
                         String accession, 
                         String format, 
-                        String reference,
-                        long start, 
-                        long end, 
+                        List<Region> regions,
+                        List<String> fields,
+                        List<String> tags,
+                        List<String> notags,
                         boolean header,
                         String destinationFormat, 
                         String destinationKey, 
@@ -349,93 +643,116 @@ public class RemoteFileServiceImpl implements FileService {
         
         // Ascertain Access Permissions for specified File ID
         File reqFile = getReqFile(file_id, auth, null);
-        if (reqFile!=null) {
+        if (reqFile!=null && getVariantFormat(reqFile)!=null) { // VCF/BCF: slices through the tabix/CSI index
+            getVariantsById(auth, reqFile, regions, response);
+        } else if (reqFile!=null) {
             
             // SeekableStream on top of RES (using Eureka to obtain RES Base URL)
             SamInputResource inputResource = null;
             CRAMReferenceSource x = null;
-            SeekableBufferedStream bIn = null, 
-                                   bIndexIn = null;
+            SeekableBufferedStream bIn = null;
+            BamIndex bamIndex = null;
+            byte[] cramIndex = null;
+            URL resUrl = null;
             try {
-                String extension = "";
-                if (reqFile.getFileName().contains(".bam")) {
-                        extension = ".bam";
-                } else if (reqFile.getFileName().contains(".cram")) {
-                        extension = ".cram";
-                        x = new ReferenceSource(new java.io.File(externalConfig.getCramFastaReference()));
+                String extension = getExtension(reqFile);
+                if (extension.equals(".cram")) {
+                        x = cramReferenceSource;
                 }
                 
                 // BAM/CRAM File
-                URL resUrl = new URL(resUrl() + "file/archive/" + reqFile.getFileId()); // Just specify file ID
+                resUrl = new URL(resUrl() + "file/archive/" + reqFile.getFileId()); // Just specify file ID
                 //SeekableStream cIn = (new EgaSeekableResStream(resUrl, null, null, reqFile.getFileSize())).setExtension(extension); // Deals with coordinates
-                SeekableStream cIn = (new EgaSeekableCachedResStream(resUrl, null, null, reqFile.getFileSize())).setExtension(extension); // Deals with coordinates
+                SeekableStream cIn = archiveStreamFactory.open(resUrl, reqFile.getFileId(), reqFile.getFileSize(), extension); // Deals with coordinates
                 bIn = new SeekableBufferedStream(cIn);
                 
-                // BAI/CRAI File
+                // BAI/CRAI File - from the index cache
                 FileIndexFile fileIndexFile = getFileIndexFile(reqFile.getFileId());
                 File reqIndexFile = getReqFile(fileIndexFile.getIndexFileId(), auth, null);
                 URL indexUrl = new URL(resUrl() + "file/archive/" + fileIndexFile.getIndexFileId()); // Just specify index ID
-                //InputStream cIndexIn = new EgaSeekableResStream(indexUrl, null, null, reqIndexFile.getFileSize());
-                //InputStream myIndexIn = new BufferedInputStream(cIndexIn);
-                //SeekableStream cIndexIn = new EgaSeekableResStream(indexUrl, null, null, reqIndexFile.getFileSize());
-                SeekableStream cIndexIn = new EgaSeekableCachedResStream(indexUrl, null, null, reqIndexFile.getFileSize());
-                bIndexIn = new SeekableBufferedStream(cIndexIn);
-
-                inputResource = SamInputResource.of(bIn).index(cIndexIn);
+                if (x==null) {
+                    bamIndex = indexService.getBamIndex(reqIndexFile.getFileId(), indexUrl, reqIndexFile.getFileSize());
+                    inputResource = SamInputResource.of(bIn);
+                } else {
+                    cramIndex = indexService.getIndexBytes(reqIndexFile.getFileId(), indexUrl, reqIndexFile.getFileSize());
+                    inputResource = SamInputResource.of(bIn).index(new ByteArraySeekableStream(cramIndex));
+                }
             } catch (Exception ex) {
                 throw new InternalErrorException(ex.getMessage(), "9");
             }
 
             // SamReader with input stream based on RES URL (should work for BAM or CRAM)
             SamReader reader = (x==null) ?
-                (SamReaderFactory.make()            // BAM FIle 
+                (SamReaderFactory.make()            // BAM FIle (file positions are needed for block passthrough)
+                  .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
                   .validationStringency(ValidationStringency.LENIENT)
-                  .enable(Option.CACHE_FILE_BASED_INDEXES)
                   .samRecordFactory(DefaultSAMRecordFactory.getInstance())
                   .open(inputResource)) :
                 (SamReaderFactory.make()            // CRAM File
                   .referenceSource(x)
                   .validationStringency(ValidationStringency.LENIENT)
-                  .enable(Option.CACHE_FILE_BASED_INDEXES)
                   .samRecordFactory(DefaultSAMRecordFactory.getInstance())
                   .open(inputResource)) ;                    
             
             SAMFileHeader fileHeader = reader.getFileHeader();
 //System.out.println("HEADER :: " + fileHeader.getTextHeader());
-            int iIndex = fileHeader.getSequenceIndex(reference);
-//System.out.println("REFERENCE :: " + reference + "     (" + iIndex + ")");
 
-            // Handle Request here - query Reader according to parameters
-            int iStart = (int)(start);
-            int iEnd = (int)(end);
-            QueryInterval[] qis = {new QueryInterval(iIndex, iStart, iEnd)};
-            SAMRecordIterator query = reader.query(qis, true);
+            // Handle Request here - query Reader according to parameters (sorted, merged regions)
+            QueryInterval[] qis = getQueryIntervals(regions, fileHeader::getSequenceIndex);
+            RecordFieldFilter filter = RecordFieldFilter.of(fields, tags, notags); // htsget fields/tags/notags
+            Iterator<SAMRecord> iterator;
+            if (qis.length == 0) { // No region: all records
+                iterator = reader.iterator();
+            } else if (bamIndex != null) { // BAM: span from the cached index, records contained in the intervals
+                SAMRecordIterator spanIterator = reader.indexing().iterator(bamIndex.getSpanOverlapping(qis));
+                iterator = new ContainedRecordIterator(spanIterator, qis);
+            } else if (cramParallel) { // CRAM: pieces of the intervals decoded in parallel, each with its own reader
+                final URL cramUrl = resUrl;
+                final byte[] cramIndexBytes = cramIndex;
+                final String extension = getExtension(reqFile);
+                iterator = new ParallelRegionIterator(() -> 
+                        SamReaderFactory.make()
+                          .referenceSource(cramReferenceSource)
+                          .validationStringency(ValidationStringency.LENIENT)
+                          .samRecordFactory(DefaultSAMRecordFactory.getInstance())
+                          .open(SamInputResource.of(new SeekableBufferedStream(
+                                      archiveStreamFactory.open(cramUrl, reqFile.getFileId(), reqFile.getFileSize(), extension)))
+                                .index(new ByteArraySeekableStream(cramIndexBytes))),
+                        qis, fileHeader, cramExecutor, cramPieceLength, cramWindow, cramDepth);
+            } else {
+                iterator = reader.query(qis, true);
+            }
 
             // Open return output stream - instatiate a SamFileWriter
             OutputStream out = null;
-            SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
             try {
                 out = response.getOutputStream();
-                if (format.equalsIgnoreCase("BAM")) {
-                    try (SAMFileWriter writer = writerFactory.makeBAMWriter(fileHeader, true, out)) { // writes out header
-                        Stream<SAMRecord> stream = query.stream();
-                        Iterator<SAMRecord> iterator = stream.iterator();
+                if (format.equalsIgnoreCase("BAM") && bamIndex != null && qis.length > 0 && filter == null && slicePassthrough) {
+                    // BAM slice: compressed blocks are copied, not re-encoded
+                    SeekableStream sliceIn = archiveStreamFactory.open(resUrl, reqFile.getFileId(), reqFile.getFileSize(), ".bam");
+                    try (BgzfSlicer slicer = new BgzfSlicer(sliceIn, out)) {
+                        slicer.writeHeader(fileHeader);
+                        while (iterator.hasNext()) {
+                            slicer.add(iterator.next());
+                        }
+                    }
+                } else if (format.equalsIgnoreCase("BAM")) { // Blocks are deflated on the shared pool
+                    try (ParallelBgzfOutputStream bgzf = bgzfStreamFactory.open(out)) {
+                        BgzfStreamFactory.writeBamHeader(bgzf, fileHeader);
+                        BAMRecordCodec codec = new BAMRecordCodec(fileHeader);
+                        codec.setOutputStream(bgzf);
                         while (iterator.hasNext()) {
                             SAMRecord next = iterator.next();
-                            writer.addAlignment(next);
+                            codec.encode(filter == null ? next : filter.apply(next));
                         }
-                        writer.close();
                     }
                 } else if (format.equalsIgnoreCase("CRAM")) { // Must specify Reference fasta file
-                    try (CRAMFileWriter writer = writerFactory
-                            .makeCRAMWriter(fileHeader, out, new java.io.File(externalConfig.getCramFastaReference()))) {
-                        Stream<SAMRecord> stream = query.stream();
-                        Iterator<SAMRecord> iterator = stream.iterator();
-                        while (iterator.hasNext()) {
+                    try (ParallelCramWriter writer = new ParallelCramWriter(out, cramReferenceSource, fileHeader, accession,
+                                                                           deflateExecutor, cramBatchSize, cramBatches)) {
+                        while (iterator.hasNext()) { // Containers are built and compressed on the shared pool
                             SAMRecord next = iterator.next();
-                            writer.addAlignment(next);
+                            writer.addAlignment(filter == null ? next : filter.apply(next));
                         }
-                        writer.close();
                     }
                 }
                 
@@ -445,6 +762,9 @@ public class RemoteFileServiceImpl implements FileService {
 
                 throw new GeneralStreamingException(t.toString(), 4);
             } finally {
+                if (iterator instanceof ParallelRegionIterator) {
+                    ((ParallelRegionIterator) iterator).close();
+                }
                 if (out != null) try {out.close();} catch (IOException ex) {;}
             }
         } else { // If no 404 was found, this is a permissions denied error
@@ -452,14 +772,225 @@ public class RemoteFileServiceImpl implements FileService {
         }
     }
     
+    /*
+     * Bgzipped VCF or BCF: header plus the records overlapping the regions
+     * (all records if there is no region), bgzipped again
+     */
+    private void getVariantsById(Authentication auth,
+                                 File reqFile,
+                                 List<Region> regions,
+                                 HttpServletResponse response) {
+        boolean bcf = getVariantFormat(reqFile).equals("BCF");
+        VariantSlicer slicer = null;
+        VariantIndex index = null;
+        try {
+            URL resUrl = new URL(resUrl() + "file/archive/" + reqFile.getFileId()); // Just specify file ID
+            FileIndexFile fileIndexFile = getFileIndexFile(reqFile.getFileId());
+            File reqIndexFile = getReqFile(fileIndexFile.getIndexFileId(), auth, null);
+            URL indexUrl = new URL(resUrl() + "file/archive/" + fileIndexFile.getIndexFileId()); // Just specify index ID
+            index = indexService.getVariantIndex(reqIndexFile.getFileId(), indexUrl, reqIndexFile.getFileSize());
+            slicer = new VariantSlicer(new SeekableBufferedStream(
+                                archiveStreamFactory.open(resUrl, reqFile.getFileId(), reqFile.getFileSize(), "")), bcf, index);
+        } catch (Exception ex) {
+            throw new InternalErrorException(ex.getMessage(), "9");
+        }
+
+        // Query intervals by index sequence order; no regions: all references
+        QueryInterval[] qis = getQueryIntervals(regions, slicer::getReferenceIndex);
+        if (qis.length == 0) {
+            qis = new QueryInterval[index.getNumberOfReferences()];
+            for (int i=0; i<qis.length; i++) {
+                qis[i] = new QueryInterval(i, 1, Integer.MAX_VALUE);
+            }
+        }
+
+        OutputStream out = null;
+        try {
+            out = response.getOutputStream();
+            try (ParallelBgzfOutputStream bgzf = bgzfStreamFactory.open(out)) {
+                slicer.writeHeader(bgzf);
+                slicer.writeRecords(index, qis, bgzf);
+            }
+        } catch (Throwable t) { // Log Error!
+            EventEntry eev = getEventEntry(t, "TODO ClientIp", "Direct GA4GH Download", auth.getName());
+            downloaderLogService.logEvent(eev);
+
+            throw new GeneralStreamingException(t.toString(), 4);
+        } finally {
+            try {slicer.close();} catch (IOException ex) {;}
+            if (out != null) try {out.close();} catch (IOException ex) {;}
+        }
+    }
+    
     /*
      * Helper Functions
      */
+    @HystrixCommand
+    private boolean logTransfer(HttpResult xferResult,
+                                String outHashtext,
+                                long timeDelta,
+                                String headerValue,
+                                String file_id,
+                                String user_email,
+                                String destinationFormat,
+                                String checksumType) {
+        Transfer received = getResSession(xferResult.getSession().get(0)); // Shortcut -- Same Database; otherwise perform a REST call to RES
+        System.out.println("Received? " + (received==null?"null":received.toString()));
+
+        // Compare received MD5 with RES
+        String inHashtext = xferResult.getMd5();
+
+        // Store with UUID for later retrieval - in case of error or success            
+        Transfer transfer = new Transfer(headerValue,
+                                         new java.sql.Timestamp(Calendar.getInstance().getTime().getTime()),
+                                         inHashtext,
+                                         outHashtext,
+                                         0,
+                                         xferResult.getBytes(),
+                                         "DATAEDGE",
+                                         null,
+                                         0,
+                                         checksumType);
+        Transfer save = transferRepository.save(transfer);
+
+        // Compare - Sent MD5 equals Received MD5? - Log Download in DB
+        boolean success = outHashtext.equals(inHashtext);
+        double speed = (xferResult.getBytes()/1024.0/1024.0)/(Math.max(timeDelta, 1)/1000.0);
+        System.out.println("Success? " + success + ", Speed: " + speed + " MB/s");
+        DownloadEntry dle = getDownloadEntry(success, speed, file_id, "TODO ClientIp", user_email, destinationFormat);
+        downloaderLogService.logDownload(dle);
+        
+        return success;
+    }
+    
+    /*
+     * Query intervals for the regions, sorted and merged; regions without a
+     * chromosome are ignored, unknown chromosomes (index < 0) are an error
+     */
+    private QueryInterval[] getQueryIntervals(List<Region> regions, ToIntFunction<String> referenceIndex) {
+        List<QueryInterval> intervals = new ArrayList<>();
+        if (regions != null) {
+            for (Region region:regions) {
+                if (region.getChr() == null || region.getChr().length() == 0) {
+                    continue;
+                }
+                int iIndex = referenceIndex.applyAsInt(region.getChr());
+                if (iIndex < 0) {
+                    throw new NotFoundException(region.getChr(), "12");
+                }
+                int iStart = (int) Math.max(1, Math.min(region.getStart(), Integer.MAX_VALUE));
+                int iEnd = (region.getEnd() <= 0) ? Integer.MAX_VALUE : (int) Math.min(region.getEnd(), Integer.MAX_VALUE);
+                intervals.add(new QueryInterval(iIndex, iStart, iEnd));
+            }
+        }
+        return QueryInterval.optimizeIntervals(intervals.toArray(new QueryInterval[intervals.size()]));
+    }
+    
+    // Open a RES data stream that outlives the calling method (for async transfers)
+    @HystrixCommand
+    private ClientHttpResponse openResStream(URI resUri) throws IOException {
+        ClientHttpRequest resRequest = restTemplate.getRequestFactory().createRequest(resUri, HttpMethod.GET);
+        resRequest.getHeaders().setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM, MediaType.ALL));
+        ClientHttpResponse resResponse = resRequest.execute();
+        if (restTemplate.getErrorHandler().hasError(resResponse)) {
+            try {
+                restTemplate.getErrorHandler().handleError(resResponse);
+            } finally {
+                resResponse.close();
+            }
+        }
+        return resResponse;
+    }
+    
+    /*
+     * Parse the Range header (RFC 7233). Only plain data can be addressed by byte
+     * position, and explicit start/end coordinates take precedence. Returns an
+     * empty list if the whole file is to be sent.
+     */
+    @HystrixCommand
+    private List<HttpRange> getRanges(File reqFile,
+                                      String destinationFormat,
+                                      long startCoordinate,
+                                      long endCoordinate,
+                                      HttpServletRequest request,
+                                      HttpServletResponse response) {
+        if (!destinationFormat.equalsIgnoreCase("plain") || startCoordinate != 0 || endCoordinate != 0) {
+            return Collections.emptyList();
+        }
+
+        long fileSize = reqFile.getFileSize();
+        response.setHeader("Accept-Ranges", "bytes");
+        String eTag = (reqFile.getChecksum()==null || reqFile.getChecksum().length()==0) ?
+                        null : "\"" + reqFile.getChecksum() + "\"";
+        if (eTag != null) {
+            response.setHeader("ETag", eTag);
+        }
+
+        String rangeHeader = (request==null) ? null : request.getHeader("Range");
+        if (rangeHeader == null || rangeHeader.length() == 0) {
+            return Collections.emptyList();
+        }
+        String ifRange = request.getHeader("If-Range"); // Range only applies if the file is unchanged
+        if (ifRange != null && !ifRange.equals(eTag)) {
+            return Collections.emptyList();
+        }
+
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException ex) {
+            ranges = null;
+        }
+        if (ranges != null && ranges.size() > 0) {
+            boolean satisfiable = fileSize > 0;
+            for (HttpRange range:ranges) {
+                satisfiable = satisfiable && range.getRangeStart(fileSize) < fileSize &&
+                                             range.getRangeStart(fileSize) <= range.getRangeEnd(fileSize);
+            }
+            if (satisfiable) {
+                return ranges;
+            }
+        }
+
+        response.setHeader("Content-Range", "bytes */" + fileSize);
+        throw new RangeNotSatisfiableException(rangeHeader, reqFile.getFileId());
+    }
+    
+    // Configured checksum algorithm, unless the request asks for a specific one
+    @HystrixCommand
+    private String getChecksumType(String checksum) {
+        String checksumType = (checksum == null || checksum.trim().length() == 0) ? defaultChecksum : checksum;
+        return ChecksumDigest.getInstance(checksumType).getAlgorithm(); // Validates the name
+    }
+    
+    // "VCF" (bgzipped) or "BCF" for variant files, otherwise null
+    private String getVariantFormat(File reqFile) {
+        String name = reqFile.getFileName().toLowerCase();
+        if (name.contains(".bcf")) {
+            return "BCF";
+        } else if (name.contains(".vcf")) {
+            return "VCF";
+        }
+        return null;
+    }
+    
+    // File type, as far as htsjdk needs to know it
+    @HystrixCommand
+    private String getExtension(File reqFile) {
+        String extension = "";
+        if (reqFile.getFileName().contains(".bam")) {
+                extension = ".bam";
+        } else if (reqFile.getFileName().contains(".cram")) {
+                extension = ".cram";
+        }
+        return extension;
+    }
+    
     @HystrixCommand
     private String getDigestText(byte[] inDigest) {
         BigInteger bigIntIn = new BigInteger(1,inDigest);
         String hashtext = bigIntIn.toString(16);
-        while(hashtext.length() < 32 ){
+        while(hashtext.length() < inDigest.length*2 ){
             hashtext = "0"+hashtext;
         }                    
         return hashtext;
@@ -571,56 +1102,8 @@ public class RemoteFileServiceImpl implements FileService {
     }
     
     @HystrixCommand
-    @Cacheable(cacheNames="reqFile")
     private File getReqFile(String file_id, Authentication auth, HttpServletRequest request) {
-
-        // Obtain all Authorised Datasets (Provided by EGA AAI)
-        HashSet<String> permissions = new HashSet<>();
-        Collection<? extends GrantedAuthority> authorities = auth.getAuthorities();
-        if (authorities != null && authorities.size() > 0) {
-            Iterator<? extends GrantedAuthority> iterator = authorities.iterator();
-            while (iterator.hasNext()) {
-                GrantedAuthority next = iterator.next();
-                permissions.add(next.getAuthority());
-            }
-        } else if (request!=null) { // ELIXIR User Case: Obtain Permmissions from X-Permissions Header
-            try {
-                List<String> permissions_ = (new VerifyMessage(request.getHeader("X-Permissions"))).getPermissions();
-                if (permissions_ != null && permissions_.size() > 0) {
-                    for (String ds:permissions_) {
-                        if (ds != null) {
-                            permissions.add(ds);
-                        }
-                    }
-                }            
-            } catch (Exception ex) {}
-        }
-        
-        ResponseEntity<FileDataset[]> forEntityDataset = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}/datasets", FileDataset[].class, file_id);
-        FileDataset[] bodyDataset = forEntityDataset.getBody();        
-        
-        File reqFile = null;
-        ResponseEntity<File[]> forEntity = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}", File[].class, file_id);
-        File[] body = forEntity.getBody();
-        if (body!=null && bodyDataset!=null) {
-            for (FileDataset f:bodyDataset) {
-                String dataset_id = f.getDatasetId();
-                if (permissions.contains(dataset_id) && body.length>=1) {
-                    reqFile = body[0];
-                    reqFile.setDatasetId(dataset_id);
-                    break;
-                }
-            }
-            
-            // If there's no file size in the database, obtain it from RES
-            if (reqFile.getFileSize() == 0) {
-                ResponseEntity<Long> forSize = restTemplate.getForEntity(RES_URL + "/file/archive/{file_id}/size", Long.class, file_id);
-                reqFile.setFileSize(forSize.getBody());
-            }
-        } else { // 404 File Not Found
-            throw new NotFoundException(file_id, "4");
-        }
-        return reqFile;
+        return fileAuthorizationService.getFile(auth, file_id, request);
     }
 
     @HystrixCommand
@@ -638,20 +1121,70 @@ public class RemoteFileServiceImpl implements FileService {
     }    
 
     @HystrixCommand
-    @Cacheable(cacheNames="indexFile")
     private FileIndexFile getFileIndexFile(String file_id) {
-        FileIndexFile indexFile = null;
-        ResponseEntity<FileIndexFile[]> forEntity = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}/index", FileIndexFile[].class, file_id);
-        FileIndexFile[] body = forEntity.getBody();
-        if (body!=null && body.length>=1) {
-            indexFile = body[0];
+        return fileAuthorizationService.getFileIndexFile(file_id);
+    }
+
+    @Override
+    @HystrixCommand
+    public List<FileManifest> prefetch(Authentication auth, 
+                                       List<String> fileIds, 
+                                       String datasetId, 
+                                       boolean index, 
+                                       HttpServletRequest request) {
+        List<FileManifest> manifest = fileAuthorizationService.prefetch(auth, fileIds, datasetId, request);
+        if (!index) {
+            return manifest;
+        }
+        
+        // Parsed indexes into the index cache, a batch at a time - a failure leaves the file's entry as it is
+        int parallel = Math.max(1, prefetchIndexParallel);
+        List<CompletableFuture<Void>> batch = new ArrayList<>(parallel);
+        for (FileManifest entry:manifest) {
+            if (entry.getError() != null || entry.getIndexFileId() == null) {
+                continue;
+            }
+            try {
+                File reqFile = getReqFile(entry.getFileId(), auth, request); // Cached by the prefetch above
+                File reqIndexFile = getReqFile(entry.getIndexFileId(), auth, request);
+                if (reqFile == null || reqIndexFile == null) {
+                    continue;
+                }
+                URL indexUrl = new URL(resUrl() + "file/archive/" + reqIndexFile.getFileId()); // Just specify index ID
+                batch.add(CompletableFuture.runAsync(() -> loadIndex(reqFile, reqIndexFile, indexUrl), prefetchExecutor));
+            } catch (Exception ex) {
+                Logger.getLogger(RemoteFileServiceImpl.class.getName()).log(Level.WARNING, "Index prefetch " + entry.getFileId(), ex);
+            }
+            if (batch.size() >= parallel) {
+                awaitIndexes(batch);
+            }
+        }
+        awaitIndexes(batch);
+        return manifest;
+    }
+
+    private void loadIndex(File reqFile, File reqIndexFile, URL indexUrl) {
+        try {
+            if (getVariantFormat(reqFile) != null) {
+                indexService.getVariantIndex(reqIndexFile.getFileId(), indexUrl, reqIndexFile.getFileSize());
+            } else if (getExtension(reqFile).equals(".cram")) {
+                indexService.getIndexBytes(reqIndexFile.getFileId(), indexUrl, reqIndexFile.getFileSize());
+            } else if (getExtension(reqFile).equals(".bam")) {
+                indexService.getBamIndex(reqIndexFile.getFileId(), indexUrl, reqIndexFile.getFileSize());
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(RemoteFileServiceImpl.class.getName()).log(Level.WARNING, "Index prefetch " + reqFile.getFileId(), ex);
         }
-        return indexFile;
+    }
+
+    // Waits for a batch of index loads (they log their own failures)
+    private static void awaitIndexes(List<CompletableFuture<Void>> batch) {
+        CompletableFuture.allOf(batch.toArray(new CompletableFuture[batch.size()])).join();
+        batch.clear();
     }
 
     @Override
     @HystrixCommand
-    @Cacheable(cacheNames="fileSize")
     public ResponseEntity getHeadById(Authentication auth, 
                             String idType, 
                             String accession, 
@@ -665,7 +1198,18 @@ public class RemoteFileServiceImpl implements FileService {
         // Ascertain Access Permissions for specified File ID
         File reqFile = getReqFile(file_id, auth, null);
         if (reqFile!=null) {
-            response.addHeader("Content-Length", String.valueOf(reqFile.getFileSize()) );
+            long fileSize = reqFile.getFileSize();
+            List<HttpRange> ranges = getRanges(reqFile, "plain", 0, 0, request, response);
+            if (ranges.size() == 1) {
+                long start = ranges.get(0).getRangeStart(fileSize);
+                long end = ranges.get(0).getRangeEnd(fileSize);
+                response.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+                response.addHeader("Content-Length", String.valueOf(end - start + 1) );
+                return new ResponseEntity(HttpStatus.PARTIAL_CONTENT);
+            } else if (ranges.size() > 1) {
+                return new ResponseEntity(HttpStatus.PARTIAL_CONTENT); // multipart/byteranges - length not known upfront
+            }
+            response.addHeader("Content-Length", String.valueOf(fileSize) );
             return new ResponseEntity(HttpStatus.OK);
         }
         
@@ -19,9 +19,7 @@ import com.netflix.appinfo.InstanceInfo;
 import com.netflix.discovery.EurekaClient;
 import com.netflix.hystrix.contrib.javanica.annotation.HystrixCommand;
 import eu.elixir.ega.ebi.dataedge.config.NotFoundException;
-import eu.elixir.ega.ebi.dataedge.config.VerifyMessage;
 import eu.elixir.ega.ebi.dataedge.dto.File;
-import eu.elixir.ega.ebi.dataedge.dto.FileDataset;
 import eu.elixir.ega.ebi.dataedge.dto.FileIndexFile;
 import eu.elixir.ega.ebi.dataedge.dto.HtsgetContainer;
 import eu.elixir.ega.ebi.dataedge.dto.HtsgetErrorResponse;
@@ -32,11 +30,11 @@ import eu.elixir.ega.ebi.dataedge.dto.MyExternalConfig;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import eu.elixir.ega.ebi.dataedge.service.FileAuthorizationService;
+import eu.elixir.ega.ebi.dataedge.service.IndexService;
 import eu.elixir.ega.ebi.dataedge.service.TicketService;
-import eu.elixir.ega.ebi.egacipher.EgaSeekableCachedResStream;
 import eu.elixir.ega.ebi.egacipher.EgaSeekableResStream;
 import htsjdk.samtools.BAMFileSpan;
-import htsjdk.samtools.BAMIndex;
 import htsjdk.samtools.Chunk;
 import htsjdk.samtools.DefaultSAMRecordFactory;
 import htsjdk.samtools.QueryInterval;
@@ -46,21 +44,26 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.seekablestream.SeekableBufferedStream;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.BlockGunzipper;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Base64;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.GrantedAuthority;
 import org.springframework.web.client.RestTemplate;
 
 /**
@@ -74,14 +77,27 @@ public class RemoteTicketServiceImpl implements TicketService {
 
     private final String SERVICE_URL = "http://DOWNLOADER";
 
+    // The 28-byte empty BGZF block that terminates a BAM file
+    private static final String EOF_URL = "data:;base64," + 
+            Base64.getEncoder().encodeToString(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+
     @Autowired
     MyExternalConfig externalConfig;
     
     @Autowired
     RestTemplate restTemplate;
+
+    @Autowired
+    private FileAuthorizationService fileAuthorizationService;
     
     @Autowired
     private EurekaClient discoveryClient;
+    
+    @Autowired
+    private ArchiveStreamFactory archiveStreamFactory;
+    
+    @Autowired
+    private IndexService indexService;
 
     @Override
     @HystrixCommand
@@ -125,7 +141,8 @@ public class RemoteTicketServiceImpl implements TicketService {
                                                               "&format=" + format + 
                                                               "&start=" + start + 
                                                               "&end=" + end + 
-                                                              "&chr=" + referenceName;
+                                                              "&chr=" + referenceName + 
+                                                              getFilterParams(fields, tags, notags);
             urls.add(new HtsgetUrl(url, authHeader));
 
             return ResponseEntity.status(HttpStatus.OK)
@@ -139,52 +156,25 @@ public class RemoteTicketServiceImpl implements TicketService {
     }
 
     
+    // fields/tags/notags for the byid URL (applied to the records there); an empty tags list is passed on
+    private String getFilterParams(List<String> fields, List<String> tags, List<String> notags) {
+        StringBuilder params = new StringBuilder();
+        if (fields != null && !fields.isEmpty()) {
+            params.append("&fields=").append(String.join(",", fields));
+        }
+        if (tags != null) {
+            params.append("&tags=").append(String.join(",", tags));
+        }
+        if (notags != null && !notags.isEmpty()) {
+            params.append("&notags=").append(String.join(",", notags));
+        }
+        return params.toString();
+    }
+    
     // *************************************************************************
     @HystrixCommand
-    @Cacheable(cacheNames="reqFile")
     private File getReqFile(String file_id, Authentication auth, HttpServletRequest request) {
-
-        // Obtain all Authorised Datasets (Provided by EGA AAI)
-        HashSet<String> permissions = new HashSet<>();
-        Collection<? extends GrantedAuthority> authorities = auth.getAuthorities();
-        if (authorities != null && authorities.size() > 0) {
-            Iterator<? extends GrantedAuthority> iterator = authorities.iterator();
-            while (iterator.hasNext()) {
-                GrantedAuthority next = iterator.next();
-                permissions.add(next.getAuthority());
-            }
-        } else if (request!=null) { // ELIXIR User Case: Obtain Permmissions from X-Permissions Header
-            try {
-                List<String> permissions_ = (new VerifyMessage(request.getHeader("X-Permissions"))).getPermissions();
-                if (permissions_ != null && permissions_.size() > 0) {
-                    for (String ds:permissions) {
-                        if (ds != null) {
-                            permissions.add(ds);
-                        }
-                    }
-                }            
-            } catch (Exception ex) {}
-        }
-        
-        ResponseEntity<FileDataset[]> forEntityDataset = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}/datasets", FileDataset[].class, file_id);
-        FileDataset[] bodyDataset = forEntityDataset.getBody();        
-        
-        File reqFile = null;
-        ResponseEntity<File[]> forEntity = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}", File[].class, file_id);
-        File[] body = forEntity.getBody();
-        if (body!=null && bodyDataset!=null) {
-            for (FileDataset f:bodyDataset) {
-                String dataset_id = f.getDatasetId();
-                if (permissions.contains(dataset_id) && body.length>=1) {
-                    reqFile = body[0];
-                    reqFile.setDatasetId(dataset_id);
-                    break;
-                }
-            }
-        } else { // 404 File Not Found
-            throw new NotFoundException(file_id, "99");
-        }
-        return reqFile;
+        return fileAuthorizationService.getFile(auth, file_id, request);
     }
 
     @Override
@@ -210,7 +200,7 @@ public class RemoteTicketServiceImpl implements TicketService {
         try {
             reqFile = getReqFile(file_id, auth, request);
             FileIndexFile fileIndexFile = getFileIndexFile(reqFile.getFileId());
-            reqIndexFile = getReqFile(fileIndexFile.getFileId(), auth, request);
+            reqIndexFile = getReqFile(fileIndexFile.getIndexFileId(), auth, request);
             
         } catch (NotFoundException ex) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND)
@@ -218,6 +208,13 @@ public class RemoteTicketServiceImpl implements TicketService {
                                  .body(new HtsgetContainer(new HtsgetErrorResponse("NotFound", "No such accession '" + file_id + "'")));
         }
         
+        // VCF/BCF, or fields/tags/notags (applied to records): served by /files/byid, as in getTicket
+        boolean filtered = (fields != null || tags != null || notags != null);
+        if (reqFile!=null && (filtered || reqFile.getFileName().toLowerCase().matches(".*\\.(vcf|bcf).*"))) {
+            return getTicket(auth, file_id, format, referenceIndex, referenceName, referenceMD5, 
+                             start, end, fields, tags, notags, request, response);
+        }
+        
         try {
             if (reqFile!=null) {
                 HtsgetHeader authHeader = new HtsgetHeader(token);
@@ -225,59 +222,78 @@ public class RemoteTicketServiceImpl implements TicketService {
                 ArrayList<HtsgetUrl> urls = new ArrayList<>();
 
                 // Calculate Coordinates for Binary Data
-                URL fileUrl = new URL(resUrl() + reqFile.getFileId());
+                URL fileUrl = new URL(resUrl() + "file/archive/" + reqFile.getFileId());
                 //EgaSeekableResStream cIn = new EgaSeekableResStream(fileUrl, null, null, reqFile.getFileSize());
-                EgaSeekableCachedResStream cIn = new EgaSeekableCachedResStream(fileUrl, null, null, reqFile.getFileSize());
+                SeekableStream cIn = archiveStreamFactory.open(fileUrl, reqFile.getFileId(), reqFile.getFileSize(), ".bam");
                 SeekableBufferedStream bIn = new SeekableBufferedStream(cIn);
 
-                URL indexUrl = new URL(resUrl() + reqIndexFile.getFileId());
-                //EgaSeekableResStream indexIn = new EgaSeekableResStream(indexUrl, null, null, reqIndexFile.getFileSize());
-                EgaSeekableCachedResStream indexIn = new EgaSeekableCachedResStream(indexUrl, null, null, reqIndexFile.getFileSize());
-                SeekableBufferedStream bIndexIn = new SeekableBufferedStream(indexIn);
+                // Parsed index, from the index cache
+                URL indexUrl = new URL(resUrl() + "file/archive/" + reqIndexFile.getFileId());
+                BamIndex index = indexService.getBamIndex(reqIndexFile.getFileId(), indexUrl, reqIndexFile.getFileSize());
 
-                // Open SamReader
-                SamInputResource inputResource = SamInputResource.of(bIn).index(bIndexIn);
+                // Open SamReader (for the header only - spans come from the index)
                 SamReader reader = 
                     SamReaderFactory.make() 
                       .validationStringency(ValidationStringency.LENIENT) 
                       .samRecordFactory(DefaultSAMRecordFactory.getInstance())
-                      .open(inputResource); 
+                      .open(SamInputResource.of(bIn)); 
 
-                // Get SamIndex
-                BAMIndex index = reader.indexing().getIndex();
-                
-                // Get Index
+                // Get Header
                 SAMFileHeader fileHeader = reader.getFileHeader();
-                int iIndex = fileHeader.getSequenceIndex(referenceName);
                 
-                // Set up Query Object
-                int iStart = Integer.parseInt(start);
-                int iEnd = Integer.parseInt(end);
-                QueryInterval[] qis = {new QueryInterval(iIndex, iStart, iEnd)};
+                // Header URL(s): all data before the first alignment
+                long headerEnd = ((BAMFileSpan) reader.indexing().getFilePointerSpanningReads()).getFirstOffset();
+                String dataUrl = externalConfig.getEgaExternalUrl() + "files/" + file_id + "?destinationFormat=plain";
+                List<Object> parts = new ArrayList<>();
+                addSlice(parts, bIn, 0, headerEnd);
                 
-                // Query, get Coordinates
-                BAMFileSpan span = getFileSpan(qis, index);
-                
-                // Header URL
-    //            String headerUrl = externalConfig.getEgaExternalUrl() + file_id + "/header?destinationFormat=plain";
-    //            urls.add(new HtsgetUrl("header", authHeader));
+                if (referenceName == null || referenceName.length() == 0) { // Whole file: all alignment blocks
+                    long dataEnd = reqFile.getFileSize() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+                    addSlice(parts, bIn, headerEnd, dataEnd << 16);
+                } else {
+                    int iIndex = fileHeader.getSequenceIndex(referenceName);
+                    if (iIndex < 0) {
+                        reader.close();
+                        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                                             .contentType(MediaType.valueOf("application/vnd.ga4gh.htsget.v0.2rc+json; charset=utf-8"))
+                                             .body(new HtsgetContainer(new HtsgetErrorResponse("NotFound", "No such reference '" + referenceName + "'")));
+                    }
+
+                    // Set up Query Object (htsget coordinates are 0-based, half-open)
+                    int iStart = (start == null || start.length() == 0) ? 1 : Integer.parseInt(start) + 1;
+                    int iEnd = (end == null || end.length() == 0) ? -1 : Integer.parseInt(end);
+                    QueryInterval[] qis = {new QueryInterval(iIndex, iStart, iEnd)};
+
+                    // Query, get Coordinates
+                    BAMFileSpan span = index.getSpanOverlapping(qis);
+
+                    // Data URL(s): the data of each chunk
+                    if (span != null) {
+                        for (Chunk c:span.getChunks()) {
+                            addSlice(parts, bIn, c.getChunkStart(), c.getChunkEnd());
+                        }
+                    }
+                }
+                reader.close();
                 
-                // Data URL(s)
-                List<Chunk> chunks = span.getChunks();
-                for (Chunk c:chunks) {
-                    String url = externalConfig.getEgaExternalUrl() + "files/" + file_id + 
-                                                                      "?startCoordinate=" + start + 
-                                                                      "&endCoordinate=" + end + 
-                                                                      "&destinationFormat=plain";
-                    urls.add(new HtsgetUrl(url, authHeader));
+                for (Object part:parts) {
+                    if (part instanceof long[]) {   // Whole blocks of the file
+                        long[] range = (long[]) part;
+                        urls.add(new HtsgetUrl(dataUrl, new HtsgetHeader(token, "bytes=" + range[0] + "-" + (range[1]-1))));
+                    } else {                        // Re-compressed partial block
+                        urls.add(new HtsgetUrl("data:;base64," + Base64.getEncoder().encodeToString((byte[]) part), null));
+                    }
                 }
+                
+                // BGZF end-of-file marker
+                urls.add(new HtsgetUrl(EOF_URL, null));
 
                 return ResponseEntity.status(HttpStatus.OK)
                                      .contentType(MediaType.valueOf("application/vnd.ga4gh.htsget.v0.2rc+json; charset=utf-8"))
                                      .body(new HtsgetContainer(new HtsgetResponse(format.toUpperCase(), urls.toArray(new HtsgetUrl[urls.size()]))));
             }
         } catch (Throwable th) {
-            
+            Logger.getLogger(RemoteTicketServiceImpl.class.getName()).log(Level.SEVERE, null, th);
         }
         
         return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
@@ -285,38 +301,77 @@ public class RemoteTicketServiceImpl implements TicketService {
                              .body(new HtsgetContainer(new HtsgetErrorResponse("UnAuthorized", "No authorization for accession '" + file_id + "'")));
     }
 
-    /**
-     * Use the index to determine the chunk boundaries for the required intervals.
-     * @param intervals the intervals to restrict reads to
-     * @param fileIndex the BAM index to use
-     * @return file pointer pairs corresponding to chunk boundaries
+    /*
+     * The uncompressed data between two virtual offsets, as parts that
+     * concatenate to valid BGZF: blocks that lie completely inside are byte
+     * ranges [start, end) of the file (merged where they touch); a partial
+     * block at either end starts or ends inside a record, so its bytes in
+     * range are re-compressed into a BGZF block of their own (byte[]).
      */
-    public static BAMFileSpan getFileSpan(QueryInterval[] intervals, BAMIndex fileIndex) {
-        final BAMFileSpan[] inputSpans = new BAMFileSpan[intervals.length];
-        for (int i = 0; i < intervals.length; ++i) {
-            final QueryInterval interval = intervals[i];
-            final BAMFileSpan span = fileIndex.getSpanOverlapping(interval.referenceIndex, interval.start, interval.end);
-            inputSpans[i] = span;
+    private static void addSlice(List<Object> parts, SeekableStream in, long vStart, long vEnd) throws IOException {
+        if (vEnd <= vStart) {
+            return;
+        }
+        long startBlock = vStart >>> 16, endBlock = vEnd >>> 16;
+        int startOffset = (int) (vStart & 0xFFFF), endOffset = (int) (vEnd & 0xFFFF);
+        if (startBlock == endBlock) {
+            addBlock(parts, in, startBlock, startOffset, endOffset);
+            return;
+        }
+        long firstWhole = startBlock;
+        if (startOffset > 0) {          // Head: the tail end of a partial block
+            firstWhole = startBlock + addBlock(parts, in, startBlock, startOffset, Integer.MAX_VALUE);
         }
-        final BAMFileSpan span;
-        if (inputSpans.length > 0) {
-            span = BAMFileSpan.merge(inputSpans);
-        } else {
-            span = null;
+        if (firstWhole < endBlock) {    // Interior: whole blocks
+            Object last = parts.isEmpty() ? null : parts.get(parts.size()-1);
+            if (last instanceof long[] && ((long[]) last)[1] == firstWhole) {
+                ((long[]) last)[1] = endBlock;
+            } else {
+                parts.add(new long[]{firstWhole, endBlock});
+            }
+        }
+        if (endOffset > 0) {            // Tail: the start of a partial block
+            addBlock(parts, in, endBlock, 0, endOffset);
         }
-        return span;
     }
-    
+
+    // Adds bytes [from, to) of the block at the address as a new BGZF block; returns the size of the source block
+    private static int addBlock(List<Object> parts, SeekableStream in, long blockAddress, int from, int to) throws IOException {
+        byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        in.seek(blockAddress);
+        readFully(in, compressed, 0, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+        int offset = BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET;
+        int bsize = ((compressed[offset] & 0xFF) | ((compressed[offset+1] & 0xFF) << 8)) + 1;
+        readFully(in, compressed, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, 
+                  bsize - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+        
+        byte[] uncompressed = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        int length = new BlockGunzipper().unzipBlock(uncompressed, compressed, bsize);
+        to = Math.min(to, length);
+        if (to > from) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            BlockCompressedOutputStream bgzf = new BlockCompressedOutputStream(block, null);
+            bgzf.write(uncompressed, from, to - from);
+            bgzf.flush();   // Not close() - that would add the EOF block
+            parts.add(block.toByteArray());
+        }
+        return bsize;
+    }
+
+    private static void readFully(SeekableStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = in.read(b, off, len);
+            if (r <= 0) {
+                throw new EOFException("Truncated BGZF block");
+            }
+            off += r;
+            len -= r;
+        }
+    }
+
     @HystrixCommand
-    @Cacheable(cacheNames="indexFile")
     private FileIndexFile getFileIndexFile(String file_id) {
-        FileIndexFile indexFile = null;
-        ResponseEntity<FileIndexFile[]> forEntity = restTemplate.getForEntity(SERVICE_URL + "/file/{file_id}/index", FileIndexFile[].class, file_id);
-        FileIndexFile[] body = forEntity.getBody();
-        if (body!=null && body.length>=1) {
-            indexFile = body[0];
-        }
-        return indexFile;
+        return fileAuthorizationService.getFileIndexFile(file_id);
     }
 
     @HystrixCommand
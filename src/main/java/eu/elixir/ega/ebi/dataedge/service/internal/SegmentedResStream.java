@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a file from RES as consecutive coordinate segments, several at a
+ * time, and presents them as one ordinary InputStream in file order.
+ *
+ * At most 'window' segments are in flight; each holds at most 'depth'
+ * pooled buffers, so memory per download is bounded regardless of how far
+ * ahead the later segments are. A segment that fails part-way is resumed
+ * from the last byte received (RES is load balanced, so a retry will
+ * usually reach another instance).
+ *
+ * Segments are submitted in file order to a FIFO executor, so a running
+ * segment always has all its predecessors running or finished.
+ *
+ * @author asenf
+ */
+class SegmentedResStream extends InputStream {
+
+    private static final Logger LOG = Logger.getLogger(SegmentedResStream.class.getName());
+
+    private static final int RETRIES = 2;
+
+    /*
+     * Opens RES for the coordinates [start, end)
+     */
+    interface SegmentOpener {
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    private final SegmentOpener opener;
+    private final ExecutorService executor;
+    private final DirectBufferPool pool;
+    private final long fileSize;
+    private final long segmentSize;
+    private final int window;
+    private final int depth;
+
+    private final ArrayDeque<Segment> inFlight = new ArrayDeque<>();
+    private long nextStart = 0;
+    private ByteBuffer current;
+    private volatile boolean closed = false;
+
+    SegmentedResStream(SegmentOpener opener,
+                       ExecutorService executor,
+                       DirectBufferPool pool,
+                       long fileSize,
+                       long segmentSize,
+                       int window,
+                       int depth) {
+        this.opener = opener;
+        this.executor = executor;
+        this.pool = pool;
+        this.fileSize = fileSize;
+        this.segmentSize = Math.max(segmentSize, pool.getBufferSize());
+        this.window = Math.max(1, window);
+        this.depth = Math.max(1, depth);
+        fillWindow();
+    }
+
+    private void fillWindow() {
+        while (!closed && inFlight.size() < window && nextStart < fileSize) {
+            long end = Math.min(nextStart + segmentSize, fileSize);
+            Segment segment = new Segment(nextStart, end);
+            inFlight.add(segment);
+            executor.execute(segment);
+            nextStart = end;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int r = read(b, 0, 1);
+        return (r <= 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+            Segment head = inFlight.peek();
+            if (head == null) {
+                return -1; // All segments delivered
+            }
+            current = head.take();
+            if (current == null) { // Segment complete - start the next one
+                inFlight.poll();
+                fillWindow();
+            }
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            pool.release(current);
+            current = null;
+        }
+        for (Segment segment:inFlight) {
+            segment.drain();
+        }
+        inFlight.clear();
+    }
+
+    /*
+     * One coordinate range, fetched by a single task into a bounded queue
+     */
+    private class Segment implements Runnable {
+
+        private final long start;
+        private final long end;
+        private final BlockingQueue<ByteBuffer> queue;
+        private volatile boolean finished = false;
+        private volatile IOException error;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.queue = new ArrayBlockingQueue<>(depth);
+        }
+
+        @Override
+        public void run() {
+            long position = start;
+            int attempt = 0;
+            byte[] staging = new byte[64 * 1024];
+            ByteBuffer buffer = null; // Partially filled - survives a retry
+            try {
+                while (position < end && !closed) {
+                    try (InputStream in = opener.open(position, end)) {
+                        int r;
+                        while (position < end && !closed &&
+                               (r = in.read(staging, 0, (int) Math.min(staging.length, end - position))) > 0) {
+                            int offset = 0;
+                            while (offset < r) {
+                                if (buffer == null) {
+                                    buffer = pool.acquire();
+                                }
+                                int n = Math.min(r - offset, buffer.remaining());
+                                buffer.put(staging, offset, n);
+                                offset += n;
+                                if (!buffer.hasRemaining()) {
+                                    buffer.flip();
+                                    put(buffer);
+                                    buffer = null;
+                                }
+                            }
+                            position += r;
+                        }
+                        if (position < end && !closed) {
+                            throw new IOException("RES stream ended at " + position + ", expected " + end);
+                        }
+                    } catch (IOException ex) {
+                        if (closed || ++attempt > RETRIES) {
+                            throw ex;
+                        }
+                        LOG.log(Level.WARNING, "Segment [" + start + "," + end + ") retried from " + position, ex);
+                    }
+                }
+                if (buffer != null && buffer.position() > 0 && !closed) {
+                    buffer.flip();
+                    put(buffer);
+                    buffer = null;
+                }
+            } catch (IOException ex) {
+                error = ex;
+            } catch (InterruptedException ex) {
+                error = new InterruptedIOException(ex.getMessage());
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                error = new IOException(ex);
+            } finally {
+                if (buffer != null) {
+                    pool.release(buffer);
+                }
+                finished = true;
+                if (closed) {
+                    drain();
+                }
+            }
+        }
+
+        // Blocks while the reorder window is full - stops waiting if the stream is closed
+        private void put(ByteBuffer buffer) throws InterruptedException {
+            while (!queue.offer(buffer, 1, TimeUnit.SECONDS)) {
+                if (closed) {
+                    pool.release(buffer);
+                    return;
+                }
+            }
+        }
+
+        // Next buffer of this segment, or null once it is complete
+        ByteBuffer take() throws IOException {
+            try {
+                while (true) {
+                    ByteBuffer buffer = queue.poll(1, TimeUnit.SECONDS);
+                    if (buffer != null) {
+                        return buffer;
+                    }
+                    if (finished && queue.isEmpty()) {
+                        if (error != null) {
+                            throw error;
+                        }
+                        return null;
+                    }
+                    if (closed) {
+                        throw new IOException("Stream closed");
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            }
+        }
+
+        void drain() {
+            ByteBuffer buffer;
+            while ((buffer = queue.poll()) != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+}
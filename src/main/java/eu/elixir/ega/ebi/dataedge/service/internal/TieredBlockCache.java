@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import java.io.IOException;
+
+/**
+ * Two caches in front of each other, e.g. memory before disk. Blocks found
+ * in the second tier are offered to the first one.
+ *
+ * @author asenf
+ */
+public class TieredBlockCache implements BlockCache {
+
+    private final BlockCache first;
+    private final BlockCache second;
+
+    public TieredBlockCache(BlockCache first, BlockCache second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public int get(String fileId, long blockOffset, byte[] buffer) {
+        int length = first.get(fileId, blockOffset, buffer);
+        if (length < 0) {
+            length = second.get(fileId, blockOffset, buffer);
+            if (length > 0) {
+                first.put(fileId, blockOffset, buffer, length);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void put(String fileId, long blockOffset, byte[] data, int length) {
+        first.put(fileId, blockOffset, data, length);
+        second.put(fileId, blockOffset, data, length);
+    }
+
+    public BlockCache getFirst() {
+        return first;
+    }
+
+    public BlockCache getSecond() {
+        return second;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            first.close();
+        } finally {
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.Chunk;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A parsed tabix (.tbi) or CSI (.csi) index of a bgzipped VCF or a BCF file,
+ * held in primitive arrays like BamIndex. CSI indexes have a configurable
+ * binning scheme and no linear index; their per-bin minimum offsets are used
+ * for pruning instead. Sequence names come from the index where it has them
+ * (tabix, and CSI with tabix-style meta data); otherwise (BCF) from the
+ * file's contig lines.
+ *
+ * @author asenf
+ */
+public class VariantIndex {
+
+    private static final byte[] TBI_MAGIC = {'T', 'B', 'I', 1};
+    private static final byte[] CSI_MAGIC = {'C', 'S', 'I', 1};
+
+    private final int minShift;
+    private final int depth;
+    private final String[] names;                   // null if the index has none
+    private final Reference[] references;
+    private final long weight;
+
+    /*
+     * As in BamIndex; binOffsets (CSI) are the per-bin minimum offsets
+     */
+    private static class Reference {
+        int[] bins;
+        long[] binOffsets;
+        int[] binChunks;
+        long[] chunks;
+        long[] linear;
+    }
+
+    private VariantIndex(int minShift, int depth, String[] names, Reference[] references) {
+        this.minShift = minShift;
+        this.depth = depth;
+        this.names = names;
+        this.references = references;
+        long w = 64;
+        for (Reference r:references) {
+            w += 64 + 4L * (r.bins.length + r.binChunks.length) + 
+                 8L * (r.binOffsets.length + r.chunks.length + r.linear.length);
+        }
+        if (names != null) {
+            for (String name:names) {
+                w += 40 + 2L * name.length();
+            }
+        }
+        this.weight = w;
+    }
+
+    /*
+     * Parse a (gzip compressed) tabix or CSI index
+     */
+    public static VariantIndex read(InputStream in) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(readAll(new GZIPInputStream(in))).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[4];
+        buf.get(magic);
+        boolean csi;
+        int minShift = 14, depth = 5;
+        String[] names = null;
+        int nRef;
+        if (Arrays.equals(magic, TBI_MAGIC)) {
+            csi = false;
+            nRef = buf.getInt();
+            names = readTabixMeta(buf);
+        } else if (Arrays.equals(magic, CSI_MAGIC)) {
+            csi = true;
+            minShift = buf.getInt();
+            depth = buf.getInt();
+            int lAux = buf.getInt();
+            if (lAux >= 28) {   // Tabix-style meta data with sequence names
+                ByteBuffer aux = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+                aux.limit(lAux);
+                names = readTabixMeta(aux);
+            }
+            buf.position(buf.position() + lAux);
+            nRef = buf.getInt();
+        } else {
+            throw new IOException("Invalid tabix/CSI index");
+        }
+        Reference[] references = new Reference[nRef];
+        int metadataBin = ((1 << ((depth + 1) * 3)) - 1) / 7 + 1;
+        for (int i=0; i<nRef; i++) {
+            int nBin = buf.getInt();
+            int[] bins = new int[nBin];
+            long[] offsets = new long[nBin];
+            long[][] binChunkLists = new long[nBin][];
+            int kept = 0, chunkCount = 0;
+            for (int b=0; b<nBin; b++) {
+                int bin = buf.getInt();
+                long offset = csi ? buf.getLong() : 0;
+                long[] chunks = new long[2 * buf.getInt()];
+                for (int c=0; c<chunks.length; c++) {
+                    chunks[c] = buf.getLong();
+                }
+                if (bin == metadataBin) {
+                    continue;
+                }
+                bins[kept] = bin;
+                offsets[kept] = offset;
+                binChunkLists[kept++] = chunks;
+                chunkCount += chunks.length;
+            }
+            Integer[] order = new Integer[kept];
+            for (int b=0; b<kept; b++) {
+                order[b] = b;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(bins[a], bins[b]));
+            Reference r = new Reference();
+            r.bins = new int[kept];
+            r.binOffsets = csi ? new long[kept] : new long[0];
+            r.binChunks = new int[kept + 1];
+            r.chunks = new long[chunkCount];
+            int pos = 0;
+            for (int b=0; b<kept; b++) {
+                long[] chunks = binChunkLists[order[b]];
+                r.bins[b] = bins[order[b]];
+                if (csi) {
+                    r.binOffsets[b] = offsets[order[b]];
+                }
+                r.binChunks[b] = pos / 2;
+                System.arraycopy(chunks, 0, r.chunks, pos, chunks.length);
+                pos += chunks.length;
+            }
+            r.binChunks[kept] = pos / 2;
+            r.linear = new long[csi ? 0 : buf.getInt()];
+            for (int l=0; l<r.linear.length; l++) {
+                r.linear[l] = buf.getLong();
+            }
+            references[i] = r;
+        }
+        return new VariantIndex(minShift, depth, names, references);
+    }
+
+    // format, col_seq, col_beg, col_end, meta, skip, l_nm, names
+    private static String[] readTabixMeta(ByteBuffer buf) {
+        buf.position(buf.position() + 24);
+        byte[] nm = new byte[buf.getInt()];
+        buf.get(nm);
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        for (int i=0; i<nm.length; i++) {
+            if (nm[i] == 0) {
+                names.add(new String(nm, start, i - start));
+                start = i + 1;
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        int length = 0, r;
+        while ((r = in.read(data, length, data.length - length)) > 0) {
+            length += r;
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+        }
+        return Arrays.copyOf(data, length);
+    }
+
+    /*
+     * Sequence names in index order, or null if the index does not name them
+     */
+    public String[] getNames() {
+        return names;
+    }
+
+    public int getNumberOfReferences() {
+        return references.length;
+    }
+
+    // Approximate heap size in bytes, for the weight-bounded cache
+    public long getWeight() {
+        return weight;
+    }
+
+    /*
+     * Chunks that may hold records overlapping [start, end] (1-based,
+     * inclusive; end <= 0 means to the end of the sequence)
+     */
+    public BAMFileSpan getSpanOverlapping(int referenceIndex, int start, int end) {
+        if (referenceIndex < 0 || referenceIndex >= references.length) {
+            return new BAMFileSpan();
+        }
+        Reference r = references[referenceIndex];
+        long maxPosition = 1L << (minShift + depth * 3);
+        long beg = (start <= 0) ? 0 : start - 1;
+        long last = (end <= 0 || end > maxPosition) ? maxPosition - 1 : end - 1;
+
+        List<Chunk> chunks = new ArrayList<>();
+        for (int bin:regionToBins(beg, last)) {
+            int b = Arrays.binarySearch(r.bins, bin);
+            if (b >= 0) {
+                for (int c=r.binChunks[b]; c<r.binChunks[b+1]; c++) {
+                    chunks.add(new Chunk(r.chunks[2*c], r.chunks[2*c+1]));
+                }
+            }
+        }
+        return new BAMFileSpan(Chunk.optimizeChunkList(chunks, getMinimumOffset(r, beg)));
+    }
+
+    private long getMinimumOffset(Reference r, long beg) {
+        if (r.linear.length > 0) {                  // Tabix: linear index
+            int window = (int) (beg >> 14);
+            return (window < r.linear.length) ? r.linear[window] : 0;
+        }
+        if (r.binOffsets.length > 0) {              // CSI: offset of the nearest indexed bin containing beg
+            int bin = firstBin(depth) + (int) (beg >> minShift);
+            for (int level=depth; level>=0; level--) {
+                int b = Arrays.binarySearch(r.bins, bin);
+                if (b >= 0) {
+                    return r.binOffsets[b];
+                }
+                bin = (bin - 1) >> 3;               // Parent
+            }
+        }
+        return 0;
+    }
+
+    private static int firstBin(int level) {
+        return ((1 << (level * 3)) - 1) / 7;
+    }
+
+    // Generalised UCSC binning (min_shift, depth), 0-based inclusive coordinates
+    private int[] regionToBins(long beg, long end) {
+        List<Integer> bins = new ArrayList<>();
+        for (int level=0, shift=minShift + depth*3; level<=depth; level++, shift-=3) {
+            int first = firstBin(level);
+            for (long k=first + (beg >> shift); k<=first + (end >> shift); k++) {
+                bins.add((int) k);
+            }
+        }
+        int[] result = new int[bins.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = bins.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Region slices of a bgzipped VCF or a BCF file. Only the index chunks of
+ * the requested regions are read; their records are checked for overlap and
+ * written, after the file's header, in file order and at most once.
+ *
+ * @author asenf
+ */
+class VariantSlicer {
+
+    private static final byte[] BCF_MAGIC = {'B', 'C', 'F', 2};
+
+    private final BlockCompressedInputStream in;
+    private final boolean bcf;
+    private final byte[] header;                    // As it is written to the output
+    private final String[] names;                   // Sequence names, in index order
+
+    VariantSlicer(SeekableStream source, boolean bcf, VariantIndex index) throws IOException {
+        this.in = new BlockCompressedInputStream(source);
+        this.bcf = bcf;
+        String text;
+        if (bcf) {
+            byte[] magic = new byte[5];
+            readFully(magic, 0, 5);
+            if (!Arrays.equals(Arrays.copyOf(magic, 4), BCF_MAGIC)) {
+                throw new IOException("Invalid BCF file");
+            }
+            byte[] length = new byte[4];
+            readFully(length, 0, 4);
+            byte[] textBytes = new byte[ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN).getInt()];
+            readFully(textBytes, 0, textBytes.length);
+            ByteArrayOutputStream h = new ByteArrayOutputStream();
+            h.write(magic);
+            h.write(length);
+            h.write(textBytes);
+            this.header = h.toByteArray();
+            text = new String(textBytes, StandardCharsets.UTF_8);
+        } else {
+            StringBuilder h = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null && line.startsWith("#")) {
+                h.append(line).append('\n');
+            }
+            text = h.toString();
+            this.header = text.getBytes(StandardCharsets.UTF_8);
+        }
+        this.names = (index.getNames() != null) ? index.getNames() : getContigs(text);
+    }
+
+    // Contig IDs in header order (the BCF contig dictionary)
+    private static String[] getContigs(String headerText) {
+        List<String> contigs = new ArrayList<>();
+        for (String line:headerText.split("\n")) {
+            if (line.startsWith("##contig=<")) {
+                int id = line.indexOf("ID=");
+                if (id >= 0) {
+                    int end = id + 3;
+                    while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '>') {
+                        end++;
+                    }
+                    contigs.add(line.substring(id + 3, end));
+                }
+            }
+        }
+        return contigs.toArray(new String[contigs.size()]);
+    }
+
+    /*
+     * Index of a sequence name, -1 if unknown
+     */
+    int getReferenceIndex(String name) {
+        for (int i=0; i<names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void writeHeader(OutputStream out) throws IOException {
+        out.write(header);
+    }
+
+    /*
+     * Records overlapping the (sorted, merged) intervals
+     */
+    void writeRecords(VariantIndex index, QueryInterval[] intervals, OutputStream out) throws IOException {
+        long lastWritten = -1;                      // Records up to here are done (chunks of intervals overlap)
+        for (QueryInterval interval:intervals) {
+            BAMFileSpan span = index.getSpanOverlapping(interval.referenceIndex, interval.start, interval.end);
+            for (Chunk chunk:span.getChunks()) {
+                in.seek(chunk.getChunkStart());
+                boolean past = false;
+                while (!past && in.getFilePointer() < chunk.getChunkEnd()) {
+                    long position = in.getFilePointer();
+                    past = bcf ? copyBcfRecord(interval, position > lastWritten, out) :
+                                 copyVcfRecord(interval, position > lastWritten, out);
+                    if (!past && position > lastWritten) { // Written, or ends before the interval
+                        lastWritten = position;             // (a record after it may overlap the next one)
+                    }
+                }
+            }
+        }
+    }
+
+    // Returns true once records start after the interval
+    private boolean copyVcfRecord(QueryInterval interval, boolean write, OutputStream out) throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            return true;
+        }
+        String[] f = line.split("\t", 9);
+        if (f.length < 8) {
+            return false;
+        }
+        if (!f[0].equals(names[interval.referenceIndex])) {
+            return getReferenceIndex(f[0]) > interval.referenceIndex;
+        }
+        int pos = Integer.parseInt(f[1]);
+        if (interval.end > 0 && pos > interval.end) {
+            return true;
+        }
+        int end = pos + Math.max(1, f[3].length()) - 1;
+        int info = (";" + f[7]).indexOf(";END=");
+        if (info >= 0) {
+            String value = f[7].substring(info + 4).split(";", 2)[0];
+            try {
+                end = Math.max(end, Integer.parseInt(value));
+            } catch (NumberFormatException ex) {}
+        }
+        if (write && end >= interval.start) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        return false;
+    }
+
+    private boolean copyBcfRecord(QueryInterval interval, boolean write, OutputStream out) throws IOException {
+        byte[] lengths = new byte[8];
+        if (!readFully(lengths, 0, 8)) {
+            return true;
+        }
+        ByteBuffer l = ByteBuffer.wrap(lengths).order(ByteOrder.LITTLE_ENDIAN);
+        int shared = l.getInt(), indiv = l.getInt();
+        byte[] record = new byte[8 + shared + indiv];
+        System.arraycopy(lengths, 0, record, 0, 8);
+        if (!readFully(record, 8, shared + indiv)) {
+            throw new EOFException("Truncated BCF record");
+        }
+        ByteBuffer r = ByteBuffer.wrap(record, 8, 12).order(ByteOrder.LITTLE_ENDIAN);
+        int chrom = r.getInt(), pos0 = r.getInt(), rlen = r.getInt();
+        if (chrom != interval.referenceIndex) {
+            return chrom > interval.referenceIndex;
+        }
+        if (interval.end > 0 && pos0 + 1 > interval.end) {
+            return true;
+        }
+        if (write && pos0 + rlen >= interval.start) {
+            out.write(record);
+        }
+        return false;
+    }
+
+    // False if the stream ended before the first byte
+    private boolean readFully(byte[] b, int off, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int r = in.read(b, off + read, len - read);
+            if (r <= 0) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated file");
+            }
+            read += r;
+        }
+        return true;
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+}
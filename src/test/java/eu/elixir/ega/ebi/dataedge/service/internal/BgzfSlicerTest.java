@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 ELIXIR EBI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.elixir.ega.ebi.dataedge.service.internal;
+
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.seekablestream.SeekableFileStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BAM slices written by BgzfSlicer read back as the records of the query
+ * intervals - with block passthrough, and re-encoded for records read
+ * without their file position.
+ *
+ * @author asenf
+ */
+public class BgzfSlicerTest {
+
+    private static final int RECORDS = 100000;
+    private static final int READ_LENGTH = 100;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File bam;
+    private static BamIndex index;
+
+    @BeforeClass
+    public static void writeBam() throws IOException {
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+                new SAMSequenceRecord("chr1", 5000000), new SAMSequenceRecord("chr2", 2000000))));
+
+        bam = new File(folder.getRoot(), "test.bam");
+        Random random = new Random(42);
+        byte[] bases = new byte[READ_LENGTH];
+        byte[] quals = new byte[READ_LENGTH];
+        try (SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, bam)) {
+            for (int i=0; i<RECORDS; i++) {
+                int referenceIndex = (i % 4 == 0) ? 1 : 0;
+                for (int j=0; j<READ_LENGTH; j++) {
+                    bases[j] = (byte) "ACGT".charAt(random.nextInt(4));
+                    quals[j] = (byte) random.nextInt(40);
+                }
+                SAMRecord record = new SAMRecord(header);
+                record.setReadName("read" + i);
+                record.setReferenceIndex(referenceIndex);
+                record.setAlignmentStart(1 + random.nextInt(header.getSequence(referenceIndex).getSequenceLength() - READ_LENGTH));
+                record.setCigarString(READ_LENGTH + "M");
+                record.setMappingQuality(60);
+                record.setReadBases(bases.clone());
+                record.setBaseQualities(quals.clone());
+                record.setAttribute("NM", random.nextInt(5));
+                writer.addAlignment(record);
+            }
+        }
+        File bai = new File(folder.getRoot(), "test.bai");
+        try (InputStream in = new FileInputStream(bai)) {
+            index = BamIndex.read(in);
+        }
+    }
+
+    @Test
+    public void sliceWithFilePositions() throws IOException {
+        QueryInterval[] intervals = intervals();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BgzfSlicer slicer = slice(intervals, true, out);
+
+        assertEquals(expected(intervals), readBack(out.toByteArray()));
+        assertTrue(slicer.getCopiedBytes() > 0);
+        assertEquals(0, slicer.getEncodedRecords());
+    }
+
+    @Test
+    public void sliceWithoutFilePositions() throws IOException {
+        QueryInterval[] intervals = intervals();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BgzfSlicer slicer = slice(intervals, false, out);
+
+        List<String> expected = expected(intervals);
+        assertEquals(expected, readBack(out.toByteArray()));
+        assertEquals(expected.size(), slicer.getEncodedRecords());
+    }
+
+    private static QueryInterval[] intervals() {
+        return QueryInterval.optimizeIntervals(new QueryInterval[]{
+            new QueryInterval(0, 1000000, 1500000),
+            new QueryInterval(0, 3000000, 3000500),
+            new QueryInterval(1, 1, 400000)});
+    }
+
+    private static BgzfSlicer slice(QueryInterval[] intervals, boolean withSource, ByteArrayOutputStream out) throws IOException {
+        SamReaderFactory factory = SamReaderFactory.make()
+                .validationStringency(ValidationStringency.LENIENT)
+                .samRecordFactory(DefaultSAMRecordFactory.getInstance());
+        if (withSource) {
+            factory.enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS);
+        }
+        try (SamReader reader = factory.open(SamInputResource.of(new SeekableFileStream(bam)))) {
+            Iterator<SAMRecord> records = new ContainedRecordIterator(
+                    reader.indexing().iterator(index.getSpanOverlapping(intervals)), intervals);
+            BgzfSlicer slicer = new BgzfSlicer(new SeekableFileStream(bam), out);
+            try {
+                slicer.writeHeader(reader.getFileHeader());
+                while (records.hasNext()) {
+                    slicer.add(records.next());
+                }
+            } finally {
+                slicer.close();
+            }
+            return slicer;
+        }
+    }
+
+    // Names of the records contained in the intervals, by a full scan
+    private static List<String> expected(QueryInterval[] intervals) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.make().open(bam)) {
+            for (SAMRecord record:reader) {
+                for (QueryInterval interval:intervals) {
+                    if (record.getReferenceIndex() == interval.referenceIndex &&
+                            record.getAlignmentStart() >= interval.start &&
+                            record.getAlignmentEnd() <= interval.end) {
+                        names.add(record.getSAMString());
+                        break;
+                    }
+                }
+            }
+        }
+        assertTrue(names.size() > 1000);
+        return names;
+    }
+
+    private static List<String> readBack(byte[] slice) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.make()
+                .validationStringency(ValidationStringency.STRICT)
+                .open(SamInputResource.of(new ByteArrayInputStream(slice)))) {
+            for (SAMRecord record:reader) {
+                records.add(record.getSAMString());
+            }
+        }
+        return records;
+    }
+}